@@ -1,15 +1,14 @@
 package com.pranav
 
 import com.pranav.analyzer.java.JavacAnalyzer
-import com.pranav.common.Indexer
-import com.pranav.common.util.CoroutineUtil
-import com.pranav.common.util.FileUtil
 import com.pranav.project.mode.JavaProject
 
 import io.github.rosemoe.sora.lang.diagnostic.*
 import io.github.rosemoe.sora.text.*
 import io.github.rosemoe.sora.widget.CodeEditor
 
+import kotlinx.coroutines.*
+
 class ProblemMarker(
         editor: CodeEditor,
         file: String,
@@ -19,17 +18,23 @@ class ProblemMarker(
     private var editor: CodeEditor
     private var analyzer: JavacAnalyzer
     private var project: JavaProject
+    private val file: String
     private val diagnostics = DiagnosticsContainer()
+    private val scope = CoroutineScope(Dispatchers.Default)
+    private var job: Job? = null
+    private var analyzedContent: Content? = null
+    private var analyzedVersion = -1L
 
     init {
         this.editor = editor
         this.project = project
+        this.file = file
         this.analyzer = JavacAnalyzer(editor.getContext(), file, project)
         run(editor.getText())
     }
 
     override fun beforeReplace(content: Content) {
-        
+
     }
 
     override fun afterInsert(
@@ -54,22 +59,37 @@ class ProblemMarker(
         run(content)
     }
 
+    /*
+     * Schedules an analysis of the content. Edits arriving within the debounce
+     * delay are coalesced into a single run, and a newer edit cancels the
+     * analysis that is still in flight.
+     */
     private fun run(content: Content) {
-        CoroutineUtil.inParallel thread@ {
-            if (!analyzer.isFirstRun()) {
-                analyzer.reset()
-            }
+        if (!file.endsWith(".java")) return
+        job?.cancel()
+        job = scope.launch {
+            delay(DEBOUNCE_DELAY)
+            // taking the snapshot is O(1), it is then read off the thread that edits the content
+            val snapshot = withContext(Dispatchers.Main) { content.snapshot() }
+            if (content === analyzedContent && snapshot.getDocumentVersion() == analyzedVersion) return@launch
             try {
-                val path = Indexer(project.getProjectName(), project.getCacheDirPath()).getString("currentFile")
-                if (!path.endsWith(".java")) return@thread
-                FileUtil.writeFile(path, content.toString())
-                analyzer.analyze()
+                analyzer.analyze(snapshot.toString()) { !isActive }
             } catch (ignored: Exception) {
-                
+
+            }
+            if (!isActive) return@launch
+            val problems = analyzer.getDiagnostics()
+            withContext(Dispatchers.Main) {
+                analyzedContent = content
+                analyzedVersion = snapshot.getDocumentVersion()
+                diagnostics.reset()
+                diagnostics.addDiagnostics(problems)
+                editor.setDiagnostics(diagnostics)
             }
-            diagnostics.reset()
-            diagnostics.addDiagnostics(analyzer.getDiagnostics())
-            editor.setDiagnostics(diagnostics)
         }
     }
+
+    companion object {
+        private const val DEBOUNCE_DELAY = 300L
+    }
 }
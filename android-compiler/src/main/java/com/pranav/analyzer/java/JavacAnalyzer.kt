@@ -3,31 +3,30 @@ package com.pranav.analyzer.java
 import android.content.Context
 import android.content.SharedPreferences
 
+import com.pranav.android.task.java.JavacService
 import com.pranav.common.util.FileUtil
 import com.pranav.project.mode.JavaProject
 
-import com.sun.source.util.JavacTask
-import com.sun.tools.javac.api.JavacTool
+import com.sun.source.util.TaskEvent
+import com.sun.source.util.TaskListener
+import com.sun.tools.javac.api.JavacTaskPool
 
 import io.github.rosemoe.sora.lang.diagnostic.DiagnosticRegion
 
 import java.io.File
 import java.io.IOException
-import java.nio.charset.Charset
 import java.util.ArrayList
-import java.util.Locale
+import java.util.concurrent.CancellationException
 
 import javax.tools.Diagnostic
 import javax.tools.DiagnosticCollector
 import javax.tools.JavaFileObject
 import javax.tools.SimpleJavaFileObject
-import javax.tools.StandardLocation
 
 class JavacAnalyzer(context: Context, file: String, javaProject: JavaProject) {
 
     private val prefs: SharedPreferences
     private var diagnostics = DiagnosticCollector<JavaFileObject>()
-    private var isFirstUse = true
     private val currentFile: String
     private val project: JavaProject
 
@@ -37,35 +36,25 @@ class JavacAnalyzer(context: Context, file: String, javaProject: JavaProject) {
         currentFile = file
     }
 
+    /*
+     * Analyzes the given contents of the current file without touching the disk.
+     * Only the current file is attributed, the other sources are read from the
+     * source path by javac as they are needed.
+     */
     @Throws(IOException::class)
-    fun analyze() {
+    fun analyze(text: CharSequence, isCancelled: () -> Boolean) {
+        diagnostics = DiagnosticCollector<JavaFileObject>()
         val output = File(project.getBinDirPath(), "classes")
         output.mkdirs()
         val version = prefs.getString("version", "7")
-        val files = getSourceFiles(File(project.getSrcDirPath()))
 
-        val javaFileObjects = arrayListOf<JavaFileObject>()
-        for (file in files) {
-        javaFileObjects.add(
-                object : SimpleJavaFileObject(
-                        file.toURI(), JavaFileObject.Kind.SOURCE) {
-                    override fun getCharContent(ignoreEncodingErrors: Boolean): CharSequence {
-                        return FileUtil.readFile(file)
-                    }
-                })
+        val source = File(currentFile)
+        val unit = object : SimpleJavaFileObject(source.toURI(), JavaFileObject.Kind.SOURCE) {
+            override fun getCharContent(ignoreEncodingErrors: Boolean): CharSequence {
+                return text
+            }
         }
 
-        val tool = JavacTool.create()
-
-        val standardJavaFileManager =
-                tool.getStandardFileManager(
-                        diagnostics, Locale.getDefault(), Charset.defaultCharset())
-        standardJavaFileManager.setLocation(
-                StandardLocation.PLATFORM_CLASS_PATH, getPlatformClasspath())
-        standardJavaFileManager.setLocation(StandardLocation.CLASS_PATH, getClasspath())
-        standardJavaFileManager.setLocation(
-                StandardLocation.SOURCE_PATH, files)
-
         val args = arrayListOf<String>()
 
         args.add("-proc:none")
@@ -78,31 +67,33 @@ class JavacAnalyzer(context: Context, file: String, javaProject: JavaProject) {
             args.add(FileUtil.getDataDir() + "compiler-modules")
         }
 
-        val task =
-                tool.getTask(
-                        null,
-                        standardJavaFileManager,
-                        diagnostics,
-                        args,
-                        null,
-                        javaFileObjects) as JavacTask
-
-        task.parse()
-        task.analyze()
-        standardJavaFileManager.close()
-        isFirstUse = false
-    }
-
-    fun isFirstRun() = isFirstUse
-
-    fun reset() {
-        diagnostics = DiagnosticCollector<JavaFileObject>()
+        JavacService.withTask(
+                JavacService.getPlatformClasspath(),
+                JavacService.getClasspath(prefs, project),
+                listOf(File(project.getSrcDirPath())),
+                null,
+                diagnostics,
+                args,
+                listOf(unit),
+                JavacTaskPool.Worker { task ->
+                    task.addTaskListener(object : TaskListener {
+                        override fun started(e: TaskEvent) {
+                            // a newer edit arrived, stop as early as possible
+                            if (isCancelled()) {
+                                throw CancellationException()
+                            }
+                        }
+                    })
+                    task.parse()
+                    task.analyze()
+                })
     }
 
     fun getDiagnostics(): ArrayList<DiagnosticRegion> {
         val problems = arrayListOf<DiagnosticRegion>()
+        val uri = File(currentFile).toURI()
         for (it in diagnostics.getDiagnostics()) {
-            if (it.getSource() == null) continue
+            if (it.getSource() == null || it.getSource().toUri() != uri) continue
             val severity = if (it.getKind() == Diagnostic.Kind.ERROR) DiagnosticRegion.SEVERITY_ERROR else DiagnosticRegion.SEVERITY_WARNING
             problems.add(
                     DiagnosticRegion(
@@ -110,43 +101,4 @@ class JavacAnalyzer(context: Context, file: String, javaProject: JavaProject) {
         }
         return problems
     }
-
-    private fun getClasspath(): ArrayList<File> {
-        val classpath = arrayListOf<File>()
-        val clspath = prefs.getString("classpath", "")
-
-        if (!clspath!!.isEmpty()) {
-            for (clas in clspath!!.split(":")) {
-                classpath.add(File(clas))
-            }
-        }
-        classpath.add(File(project.getBinDirPath() + "classes"))
-        return classpath
-    }
-
-    private fun getPlatformClasspath(): ArrayList<File> {
-        val classpath = arrayListOf<File>()
-        classpath.add(File(FileUtil.getClasspathDir(), "android.jar"))
-        classpath.add(File(FileUtil.getClasspathDir(), "core-lambda-stubs.jar"))
-        classpath.add(File(FileUtil.getClasspathDir(), "kotlin-stdlib-1.7.10.jar"))
-        return classpath
-    }
-
-    private fun getSourceFiles(path: File): ArrayList<File> {
-        val sourceFiles = arrayListOf<File>()
-        val files = path.listFiles()
-        if (files == null) {
-            return arrayListOf<File>()
-        }
-        for (file in files) {
-            if (file.isFile()) {
-                if (file.getName().endsWith(".java")) {
-                    sourceFiles.add(file)
-                }
-            } else {
-                sourceFiles.addAll(getSourceFiles(file))
-            }
-        }
-        return sourceFiles
-    }
 }
@@ -0,0 +1,190 @@
+package com.pranav.android.code.decompiler
+
+import org.benf.cfr.reader.api.CfrDriver
+import org.benf.cfr.reader.api.ClassFileSource
+import org.benf.cfr.reader.api.OutputSinkFactory
+import org.benf.cfr.reader.bytecode.analysis.parse.utils.Pair
+
+import java.io.File
+import java.io.IOException
+import java.security.MessageDigest
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.zip.ZipFile
+
+/*
+ * Decompiles class files with CFR on a background thread. The archives on the
+ * classpath stay open and indexed between requests, the classes read from them
+ * are cached, and the decompiled sources are kept keyed by the hash of the
+ * class files they were decompiled from.
+ */
+object CfrDecompiler {
+
+    interface Listener {
+        fun onProgress(message: String)
+    }
+
+    private const val MAX_SOURCES = 64
+    private const val MAX_CLASSES = 2048
+
+    private val executor = Executors.newSingleThreadExecutor { r -> Thread(r, "CFR") }
+    private val sources = lruMap<String, String>(MAX_SOURCES)
+    private val source = CachedClassFileSource()
+
+    /*
+     * Decompiles the given class of the class output, with its nested classes
+     */
+    @JvmStatic
+    fun decompile(
+            classesDir: File,
+            classpath: List<File>,
+            className: String,
+            listener: Listener
+    ): CompletableFuture<String> {
+        return CompletableFuture.supplyAsync({
+            val path = className.replace('.', '/')
+            val classFile = File(classesDir, "$path.class")
+            if (!classFile.exists()) {
+                throw IOException(className + " wasn't compiled")
+            }
+            val key = getHash(classFile)
+            synchronized(sources) { sources[key] }?.let { return@supplyAsync it }
+
+            source.setClasspath(classesDir, classpath)
+            val output = StringBuilder()
+            val errors = StringBuilder()
+            CfrDriver.Builder()
+                    .withOptions(mapOf("showversion" to "false"))
+                    .withClassFileSource(source)
+                    .withOutputSink(Sink(output, errors, listener))
+                    .build()
+                    .analyse(listOf(classFile.absolutePath))
+            if (output.isEmpty()) {
+                throw IOException("Unable to decompile " + className + "\n" + errors)
+            }
+            val decompiled = output.toString()
+            synchronized(sources) { sources[key] = decompiled }
+            decompiled
+        }, executor)
+    }
+
+    // the class and the classes nested in it, as they are decompiled together
+    private fun getHash(classFile: File): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val prefix = classFile.name.removeSuffix(".class") + "$"
+        val nested = classFile.parentFile?.listFiles { f -> f.name.startsWith(prefix) } ?: emptyArray()
+        for (file in listOf(classFile) + nested.sortedBy { it.name }) {
+            digest.update(file.name.toByteArray())
+            digest.update(file.readBytes())
+        }
+        return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    private fun <K, V> lruMap(capacity: Int): LinkedHashMap<K, V> {
+        return object : LinkedHashMap<K, V>(16, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, V>): Boolean {
+                return size > capacity
+            }
+        }
+    }
+
+    private class Sink(
+            private val output: StringBuilder,
+            private val errors: StringBuilder,
+            private val listener: Listener
+    ) : OutputSinkFactory {
+
+        override fun getSupportedSinks(
+                sinkType: OutputSinkFactory.SinkType,
+                available: Collection<OutputSinkFactory.SinkClass>
+        ): List<OutputSinkFactory.SinkClass> {
+            return listOf(OutputSinkFactory.SinkClass.STRING)
+        }
+
+        override fun <T> getSink(
+                sinkType: OutputSinkFactory.SinkType,
+                sinkClass: OutputSinkFactory.SinkClass
+        ): OutputSinkFactory.Sink<T> {
+            return OutputSinkFactory.Sink<T> { content ->
+                when (sinkType) {
+                    OutputSinkFactory.SinkType.JAVA -> output.append(content)
+                    OutputSinkFactory.SinkType.PROGRESS -> listener.onProgress(content.toString())
+                    OutputSinkFactory.SinkType.EXCEPTION -> errors.append(content).append('\n')
+                    else -> {}
+                }
+            }
+        }
+    }
+
+    /*
+     * Reads classes from the class output, which always changes, and from the
+     * archives on the classpath, which are kept open until the classpath changes
+     */
+    private class CachedClassFileSource : ClassFileSource {
+
+        private var classesDir: File? = null
+        private var fingerprint = ""
+        private val archives = arrayListOf<ZipFile>()
+        // class file path -> archive containing it
+        private val entries = hashMapOf<String, ZipFile>()
+        private val classes = lruMap<String, ByteArray>(MAX_CLASSES)
+
+        @Synchronized
+        fun setClasspath(classesDir: File, classpath: List<File>) {
+            this.classesDir = classesDir
+            val current = classpath.joinToString(File.pathSeparator) {
+                it.absolutePath + ":" + it.length() + ":" + it.lastModified()
+            }
+            if (current == fingerprint) {
+                return
+            }
+            archives.forEach {
+                try {
+                    it.close()
+                } catch (ignored: IOException) {
+                }
+            }
+            archives.clear()
+            entries.clear()
+            classes.clear()
+            for (file in classpath) {
+                if (!file.isFile()) {
+                    continue
+                }
+                val zip = ZipFile(file)
+                archives.add(zip)
+                for (entry in zip.entries()) {
+                    if (entry.name.endsWith(".class")) {
+                        entries.putIfAbsent(entry.name, zip)
+                    }
+                }
+            }
+            fingerprint = current
+        }
+
+        override fun informAnalysisRelativePathDetail(usePath: String?, classFilePath: String?) {}
+
+        override fun addJar(jarPath: String): Collection<String> = emptyList()
+
+        override fun getPossiblyRenamedPath(path: String): String = path
+
+        @Synchronized
+        @Throws(IOException::class)
+        override fun getClassFileContent(path: String): Pair<ByteArray, String> {
+            // the class being decompiled is given by its absolute path
+            val file = File(path)
+            if (file.isAbsolute() && file.isFile()) {
+                return Pair.make(file.readBytes(), path)
+            }
+            val compiled = File(classesDir, path)
+            if (compiled.isFile()) {
+                return Pair.make(compiled.readBytes(), path)
+            }
+            classes[path]?.let { return Pair.make(it, path) }
+            val zip = entries[path] ?: throw IOException("No such class file " + path)
+            val bytes = zip.getInputStream(zip.getEntry(path)).use { it.readBytes() }
+            classes[path] = bytes
+            return Pair.make(bytes, path)
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.pranav.android.code.disassembler
+
+import java.io.File
+import java.io.IOException
+import java.security.MessageDigest
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/*
+ * Disassembles class files with javap or the Eclipse disassembler off the UI
+ * thread. The output is kept keyed by the hash of the class file, so going
+ * back to a class which didn't change since it was last shown never runs the
+ * disassembler again.
+ */
+object ClassDisassembler {
+
+    private const val MAX_ENTRIES = 64
+
+    private val executor = Executors.newSingleThreadExecutor { r -> Thread(r, "Disassembler") }
+    private val cache =
+            object : LinkedHashMap<String, String>(16, 0.75f, true) {
+                override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, String>): Boolean {
+                    return size > MAX_ENTRIES
+                }
+            }
+
+    /*
+     * Disassembles the given class of the class output
+     */
+    @JvmStatic
+    fun disassemble(classesDir: File, className: String, useJavap: Boolean): CompletableFuture<String> {
+        return CompletableFuture.supplyAsync({
+            val classFile = getClassFile(classesDir, className)
+            if (!classFile.exists()) {
+                throw IOException(className + " wasn't compiled")
+            }
+            val bytes = classFile.readBytes()
+            val key = getKey(bytes, useJavap)
+            synchronized(cache) { cache[key] }?.let { return@supplyAsync it }
+
+            val disassembled = disassemble(classFile, bytes, useJavap)
+            synchronized(cache) { cache[key] = disassembled }
+            disassembled
+        }, executor)
+    }
+
+    /*
+     * Disassembles every class of the class output into the given directory,
+     * using all the available processors. Returns the number of classes
+     * written.
+     */
+    @JvmStatic
+    fun exportAll(classesDir: File, outputDir: File, useJavap: Boolean): CompletableFuture<Int> {
+        return CompletableFuture.supplyAsync({
+            val classFiles = classesDir.walk().filter { it.isFile() && it.name.endsWith(".class") }.toList()
+            val jobs = Runtime.getRuntime().availableProcessors()
+            val pool = Executors.newFixedThreadPool(jobs) { r -> Thread(r, "Disassembler export") }
+            try {
+                val tasks = arrayListOf<Future<*>>()
+                for (classFile in classFiles) {
+                    tasks.add(pool.submit {
+                        val bytes = classFile.readBytes()
+                        val key = getKey(bytes, useJavap)
+                        val disassembled =
+                                synchronized(cache) { cache[key] }
+                                        ?: disassemble(classFile, bytes, useJavap)
+                        val relative = classFile.relativeTo(classesDir).path.removeSuffix(".class")
+                        val output = File(outputDir, relative + ".txt")
+                        output.parentFile?.mkdirs()
+                        output.writeText(disassembled)
+                    })
+                }
+                // rethrows the first failure
+                tasks.forEach { it.get() }
+            } finally {
+                pool.shutdownNow()
+            }
+            classFiles.size
+        }, executor)
+    }
+
+    private fun disassemble(classFile: File, bytes: ByteArray, useJavap: Boolean): String {
+        return if (useJavap) {
+            JavapDisassembler(classFile.absolutePath).disassemble()
+        } else {
+            EclipseDisassembler(bytes).disassemble()
+        }
+    }
+
+    private fun getClassFile(classesDir: File, className: String): File {
+        return File(classesDir, className.replace('.', '/') + ".class")
+    }
+
+    private fun getKey(bytes: ByteArray, useJavap: Boolean): String {
+        val digest = MessageDigest.getInstance("SHA-256").digest(bytes)
+        val hash = digest.joinToString("") { "%02x".format(it) }
+        return (if (useJavap) "javap:" else "eclipse:") + hash
+    }
+}
@@ -7,13 +7,10 @@ import java.io.IOException
 import java.nio.file.Files
 import java.nio.file.Paths
 
-class EclipseDisassembler(filePath: String) {
+class EclipseDisassembler(private val classFileBytes: ByteArray) {
 
-    private var classFileBytes: ByteArray
-
-    init {
-        classFileBytes = Files.readAllBytes(Paths.get(filePath))
-    }
+    @Throws(IOException::class)
+    constructor(filePath: String) : this(Files.readAllBytes(Paths.get(filePath)))
 
     @Throws(Throwable::class)
     fun disassemble() : String {
@@ -0,0 +1,81 @@
+package com.pranav.android.code.disassembler
+
+import com.pranav.common.util.FileUtil
+
+import org.jf.baksmali.Adaptors.ClassDefinition
+import org.jf.baksmali.Baksmali
+import org.jf.baksmali.BaksmaliOptions
+import org.jf.dexlib2.DexFileFactory
+import org.jf.dexlib2.Opcodes
+import org.jf.dexlib2.iface.DexFile
+import org.jf.util.IndentingWriter
+
+import java.io.File
+import java.io.IOException
+import java.io.StringWriter
+
+/*
+ * Disassembles single classes of a dex file into smali. The output is cached
+ * under the hash of the dex file, so showing a class never disassembles the
+ * rest of the dex, and showing it again doesn't disassemble it at all.
+ */
+class SmaliDisassembler(private val dexFile: File, private val cacheDir: File) {
+
+    private val hash = FileUtil.getHash(dexFile)
+
+    @Throws(IOException::class)
+    fun disassemble(className: String): String {
+        val cached = File(cacheDir, hash + "/" + className.replace('.', '/') + ".smali")
+        if (cached.exists()) {
+            return cached.readText()
+        }
+
+        val type = "L" + className.replace('.', '/') + ";"
+        val classDef =
+                getDexFile().getClasses().firstOrNull { it.getType() == type }
+                        ?: throw IOException(className + " is not part of " + dexFile.name)
+        val writer = StringWriter()
+        IndentingWriter(writer).use { ClassDefinition(getOptions(), classDef).writeTo(it) }
+        val smali = writer.toString()
+
+        // the output of older dex files is never read again
+        cacheDir.listFiles { f -> f.name != hash }?.forEach { it.deleteRecursively() }
+        cached.parentFile?.mkdirs()
+        cached.writeText(smali)
+        return smali
+    }
+
+    /*
+     * Disassembles every class of the dex into the given directory, using
+     * all the available processors
+     */
+    @Throws(IOException::class)
+    fun exportAll(outputDir: File): Boolean {
+        val jobs = Runtime.getRuntime().availableProcessors()
+        return Baksmali.disassembleDexFile(getDexFile(), outputDir, jobs, getOptions())
+    }
+
+    private fun getDexFile(): DexFile {
+        synchronized(SmaliDisassembler::class.java) {
+            if (loadedHash != hash) {
+                loadedDex = DexFileFactory.loadDexFile(dexFile, Opcodes.forApi(API_LEVEL))
+                loadedHash = hash
+            }
+            return loadedDex!!
+        }
+    }
+
+    private fun getOptions(): BaksmaliOptions {
+        val options = BaksmaliOptions()
+        options.apiLevel = API_LEVEL
+        return options
+    }
+
+    companion object {
+        private const val API_LEVEL = 32
+
+        // the dex last disassembled from, kept loaded for the next class
+        private var loadedHash: String? = null
+        private var loadedDex: DexFile? = null
+    }
+}
@@ -9,4 +9,13 @@ interface Task {
     @Throws(Exception::class)
     fun doFullTask(project: JavaProject)
 
-}
\ No newline at end of file
+    /*
+     * Describes what the outputs depend on besides the input files, such as
+     * the options, the classpath and the tool version. The task isn't
+     * considered up to date once this changes.
+     */
+    fun getCacheKey(project: JavaProject) : String {
+        return ""
+    }
+
+}
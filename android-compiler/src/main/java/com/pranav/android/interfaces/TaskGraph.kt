@@ -0,0 +1,186 @@
+package com.pranav.android.interfaces
+
+import com.pranav.android.task.BuildMetrics
+import com.pranav.project.mode.JavaProject
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.security.MessageDigest
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+
+/*
+ * A graph of tasks where every task declares the files it reads, the files
+ * it writes and the tasks it depends on. Tasks whose dependencies have
+ * finished run in parallel, and tasks whose inputs did not change since
+ * their last successful run are skipped. Tasks without outputs, such as
+ * those building into memory, always run. Besides the inputs, a task is run
+ * again when its cache key, e.g. its options or its classpath, changed.
+ */
+class TaskGraph @JvmOverloads constructor(
+        private val project: JavaProject,
+        private val metrics: BuildMetrics? = null
+) {
+
+    class Node internal constructor(
+            val task: Task,
+            val inputs: List<File>,
+            val outputs: List<File>,
+            val dependencies: List<Node>
+    )
+
+    interface Listener {
+        fun onTaskStarted(task: Task)
+
+        fun onTaskFinished(task: Task, upToDate: Boolean)
+    }
+
+    private val nodes = arrayListOf<Node>()
+    private val fingerprintsFile = File(project.getCacheDirPath(), "tasks.fingerprints")
+    private val fingerprints = hashMapOf<String, String>()
+
+    /*
+     * Adds a task to the graph. Dependencies must have been added before,
+     * which also guarantees that the graph has no cycles.
+     */
+    fun add(task: Task, inputs: List<File>, outputs: List<File>, vararg dependencies: Node): Node {
+        for (dependency in dependencies) {
+            require(dependency in nodes) { dependency.task.getTaskName() + " is not part of the graph" }
+        }
+        val node = Node(task, inputs, outputs, dependencies.toList())
+        nodes.add(node)
+        return node
+    }
+
+    @Throws(Exception::class)
+    fun execute(listener: Listener) {
+        loadFingerprints()
+        val parent = BuildMetrics.current()
+        val threads = minOf(nodes.size, Runtime.getRuntime().availableProcessors()).coerceAtLeast(1)
+        val executor = Executors.newFixedThreadPool(threads)
+        try {
+            val futures = hashMapOf<Node, CompletableFuture<Void>>()
+            for (node in nodes) {
+                val dependencies = node.dependencies.map { futures[it]!! }
+                futures[node] = CompletableFuture.allOf(*dependencies.toTypedArray())
+                        .thenRunAsync({ run(node, listener, parent) }, executor)
+            }
+            try {
+                CompletableFuture.allOf(*futures.values.toTypedArray()).get()
+            } catch (e: ExecutionException) {
+                throw unwrap(e)
+            }
+        } finally {
+            executor.shutdownNow()
+            saveFingerprints()
+        }
+    }
+
+    private fun run(node: Node, listener: Listener, parent: BuildMetrics.Span?) {
+        val name = node.task.getTaskName()
+        val span = metrics?.start(name, parent)
+        try {
+            if (node.outputs.isEmpty()) {
+                listener.onTaskStarted(node.task)
+                runTask(node.task)
+                listener.onTaskFinished(node.task, false)
+                return
+            }
+            val fingerprint = getFingerprint(node)
+            val upToDate = synchronized(fingerprints) { fingerprints[name] == fingerprint } &&
+                    node.outputs.all { it.exists() }
+            if (upToDate) {
+                span?.count("upToDate", 1)
+                listener.onTaskFinished(node.task, true)
+                return
+            }
+            listener.onTaskStarted(node.task)
+            synchronized(fingerprints) { fingerprints.remove(name) }
+            runTask(node.task)
+            // inputs changed while the task was running are picked up by the next build
+            synchronized(fingerprints) { fingerprints[name] = fingerprint }
+            listener.onTaskFinished(node.task, false)
+        } finally {
+            span?.close()
+        }
+    }
+
+    private fun runTask(task: Task) {
+        try {
+            task.doFullTask(project)
+        } catch (e: Exception) {
+            throw CompletionException(e)
+        }
+    }
+
+    private fun unwrap(e: Throwable): Exception {
+        var cause: Throwable = e
+        while ((cause is ExecutionException || cause is CompletionException) && cause.cause != null) {
+            cause = cause.cause!!
+        }
+        return cause as? Exception ?: ExecutionException(cause)
+    }
+
+    private fun getFingerprint(node: Node): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update(node.task.getCacheKey(project).toByteArray())
+        for (file in node.inputs) {
+            file.walkTopDown().sortedBy { it.path }.forEach {
+                digest.update(it.path.toByteArray())
+                digest.update((it.length().toString() + ":" + it.lastModified()).toByteArray())
+            }
+        }
+        return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    private fun loadFingerprints() {
+        fingerprints.clear()
+        if (!fingerprintsFile.exists()) {
+            return
+        }
+        try {
+            DataInputStream(fingerprintsFile.inputStream().buffered()).use { input ->
+                repeat(input.readInt()) {
+                    fingerprints[input.readUTF()] = input.readUTF()
+                }
+            }
+        } catch (e: IOException) {
+            // every task simply runs again
+            fingerprints.clear()
+        }
+    }
+
+    private fun saveFingerprints() {
+        try {
+            fingerprintsFile.parentFile?.mkdirs()
+            DataOutputStream(fingerprintsFile.outputStream().buffered()).use { output ->
+                synchronized(fingerprints) {
+                    output.writeInt(fingerprints.size)
+                    for ((name, fingerprint) in fingerprints) {
+                        output.writeUTF(name)
+                        output.writeUTF(fingerprint)
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            e.printStackTrace()
+        }
+    }
+
+    companion object {
+        /*
+         * Describes files outside of the inputs for a cache key, the same
+         * way the inputs are fingerprinted.
+         */
+        @JvmStatic
+        fun describe(files: List<File>): String {
+            return files.joinToString(File.pathSeparator) {
+                it.path + ":" + it.length() + ":" + it.lastModified()
+            }
+        }
+    }
+}
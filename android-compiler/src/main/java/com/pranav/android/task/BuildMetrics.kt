@@ -0,0 +1,239 @@
+package com.pranav.android.task
+
+import android.os.Debug
+
+import org.json.JSONArray
+import org.json.JSONObject
+
+import java.io.File
+import java.io.IOException
+
+/*
+ * Records timing and resource usage of a build. Every stage and sub-step is
+ * a span which tracks its wall time, the cpu time of the thread which opened
+ * it, the bytes allocated by the process while it was open, the peak heap
+ * usage sampled while it was open and any counters recorded by the code
+ * running inside it.
+ */
+class BuildMetrics {
+
+    inner class Span internal constructor(val name: String, val parent: Span?) : AutoCloseable {
+        val thread: String = Thread.currentThread().name
+        val threadId = Thread.currentThread().id
+        val start = System.nanoTime() - origin
+        var wallNanos = 0L
+            private set
+        /* only the thread which opened the span, work handed to other threads isn't included */
+        var threadCpuNanos = 0L
+            private set
+        var allocatedBytes = 0L
+            private set
+        var peakHeapBytes = 0L
+            internal set
+        val counters = linkedMapOf<String, Long>()
+        val owner: BuildMetrics
+            get() = this@BuildMetrics
+
+        private val startCpu = getThreadCpuTime()
+        private val startAllocated = getAllocatedBytes()
+        private var closed = false
+
+        fun count(counter: String, delta: Long) {
+            synchronized(this) {
+                counters[counter] = (counters[counter] ?: 0L) + delta
+            }
+        }
+
+        override fun close() {
+            if (closed) return
+            closed = true
+            wallNanos = System.nanoTime() - origin - start
+            threadCpuNanos = maxOf(getThreadCpuTime() - startCpu, 0L)
+            allocatedBytes = maxOf(getAllocatedBytes() - startAllocated, 0L)
+            val heap = getUsedHeap()
+            synchronized(this@BuildMetrics) {
+                open.remove(this)
+                peakHeapBytes = maxOf(peakHeapBytes, heap)
+                parent?.let { it.peakHeapBytes = maxOf(it.peakHeapBytes, peakHeapBytes) }
+                peakHeap = maxOf(peakHeap, heap)
+            }
+            if (active.get() === this) {
+                active.set(parent)
+            }
+        }
+
+        fun toJson(): JSONObject {
+            val json = JSONObject()
+            json.put("name", name)
+            json.put("parent", parent?.name ?: JSONObject.NULL)
+            json.put("thread", thread)
+            json.put("startMs", start / 1_000_000.0)
+            json.put("wallMs", wallNanos / 1_000_000.0)
+            json.put("threadCpuMs", threadCpuNanos / 1_000_000.0)
+            json.put("allocatedBytes", allocatedBytes)
+            json.put("peakHeapBytes", peakHeapBytes)
+            json.put("counters", JSONObject(counters as Map<*, *>))
+            return json
+        }
+    }
+
+    private val origin = System.nanoTime()
+    private val spans = arrayListOf<Span>()
+    private var peakHeap = 0L
+    // guarded by this, the sampler runs while any span is open
+    private val open = linkedSetOf<Span>()
+    private var sampler: Thread? = null
+
+    /*
+     * Opens a span on the current thread. Spans opened on the same thread
+     * before it is closed become its children.
+     */
+    fun start(name: String): Span {
+        return start(name, active.get()?.takeIf { it.owner === this })
+    }
+
+    /*
+     * Opens a span on the current thread with an explicit parent, for work
+     * handed over to another thread
+     */
+    fun start(name: String, parent: Span?): Span {
+        val span = Span(name, parent)
+        synchronized(this) {
+            spans.add(span)
+            open.add(span)
+            if (sampler == null) {
+                sampler = Thread(::sampleHeap, "Build metrics").apply {
+                    isDaemon = true
+                    start()
+                }
+            }
+        }
+        active.set(span)
+        return span
+    }
+
+    /*
+     * A span only sees the heap at its end otherwise, while most of the
+     * garbage of a stage is usually collected before it
+     */
+    private fun sampleHeap() {
+        while (true) {
+            try {
+                Thread.sleep(HEAP_SAMPLE_MS)
+            } catch (e: InterruptedException) {
+                synchronized(this) { sampler = null }
+                return
+            }
+            val heap = getUsedHeap()
+            synchronized(this) {
+                if (open.isEmpty()) {
+                    sampler = null
+                    return
+                }
+                for (span in open) {
+                    span.peakHeapBytes = maxOf(span.peakHeapBytes, heap)
+                }
+                peakHeap = maxOf(peakHeap, heap)
+            }
+        }
+    }
+
+    fun getSpans(): List<Span> = synchronized(this) { spans.toList() }
+
+    fun getPeakHeapBytes(): Long = peakHeap
+
+    fun toJson(): JSONObject {
+        val json = JSONObject()
+        val array = JSONArray()
+        getSpans().forEach { array.put(it.toJson()) }
+        json.put("spans", array)
+        json.put("peakHeapBytes", peakHeap)
+        return json
+    }
+
+    /*
+     * Converts the spans to the Chrome trace event format, which can be
+     * opened in chrome://tracing or Perfetto
+     */
+    fun toTraceEvents(): JSONObject {
+        val events = JSONArray()
+        for (span in getSpans()) {
+            val event = JSONObject()
+            event.put("name", span.name)
+            event.put("cat", "build")
+            event.put("ph", "X")
+            event.put("ts", span.start / 1000)
+            event.put("dur", span.wallNanos / 1000)
+            event.put("pid", 1)
+            event.put("tid", span.threadId)
+            val args = JSONObject(span.counters as Map<*, *>)
+            args.put("threadCpuMs", span.threadCpuNanos / 1_000_000.0)
+            args.put("allocatedBytes", span.allocatedBytes)
+            args.put("peakHeapBytes", span.peakHeapBytes)
+            event.put("args", args)
+            events.put(event)
+        }
+        return JSONObject().put("traceEvents", events).put("displayTimeUnit", "ms")
+    }
+
+    /*
+     * Writes the metrics and the trace of the build into the given directory
+     */
+    @Throws(IOException::class)
+    fun writeTo(directory: File) {
+        directory.mkdirs()
+        File(directory, "build-metrics.json").writeText(toJson().toString(2))
+        File(directory, "build-trace.json").writeText(toTraceEvents().toString())
+    }
+
+    companion object {
+        private val active = ThreadLocal<BuildMetrics.Span?>()
+
+        private const val HEAP_SAMPLE_MS = 10L
+
+        // the probes are only available on ART, other runtimes report 0
+        private val hasProbes = try {
+            Debug.threadCpuTimeNanos()
+            true
+        } catch (e: Throwable) {
+            false
+        }
+
+        /*
+         * Returns the span currently open on this thread, if any
+         */
+        @JvmStatic
+        fun current(): Span? = active.get()
+
+        /*
+         * Opens a child span of the span open on this thread. Returns null when
+         * no build is being measured, which try-with-resources handles fine.
+         */
+        @JvmStatic
+        fun span(name: String): Span? {
+            val parent = active.get() ?: return null
+            return parent.owner.start(name)
+        }
+
+        @JvmStatic
+        @JvmOverloads
+        fun count(counter: String, delta: Long = 1L) {
+            active.get()?.count(counter, delta)
+        }
+
+        private fun getThreadCpuTime(): Long {
+            return if (hasProbes) Debug.threadCpuTimeNanos() else 0L
+        }
+
+        // process wide, as ART doesn't track allocations per thread
+        private fun getAllocatedBytes(): Long {
+            if (!hasProbes) return 0L
+            return Debug.getRuntimeStat("art.gc.bytes-allocated")?.toLongOrNull() ?: 0L
+        }
+
+        private fun getUsedHeap(): Long {
+            val runtime = Runtime.getRuntime()
+            return runtime.totalMemory() - runtime.freeMemory()
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.pranav.android.task
+
+import com.pranav.android.task.dex.DexIndex
+
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+
+/*
+ * Holds the outputs of a build which is only run, so that neither the
+ * class files nor the dex files have to be written to and read back from
+ * the disk
+ */
+class InMemoryOutput {
+
+    // binary class name -> class file
+    private val classes = ConcurrentHashMap<String, ByteArray>()
+    private val dexFiles = arrayListOf<ByteArray>()
+    private var index = DexIndex(emptyList(), emptyList())
+
+    fun getClasses(): MutableMap<String, ByteArray> = classes
+
+    @Synchronized
+    fun setDexFiles(dex: List<ByteArray>) {
+        dexFiles.clear()
+        dexFiles.addAll(dex)
+        index = DexIndex.fromDex(getDexBuffers())
+    }
+
+    @Synchronized
+    fun getDexBuffers(): List<ByteBuffer> = dexFiles.map { ByteBuffer.wrap(it) }
+
+    /*
+     * Returns the index of the classes in the dex files
+     */
+    @Synchronized
+    fun getIndex(): DexIndex = index
+}
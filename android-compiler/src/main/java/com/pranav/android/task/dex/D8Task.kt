@@ -1,29 +1,292 @@
 package com.pranav.android.task.dex
 
+import com.android.tools.r8.ByteDataView
 import com.android.tools.r8.D8
 import com.android.tools.r8.D8Command
+import com.android.tools.r8.DexIndexedConsumer
+import com.android.tools.r8.DiagnosticsHandler
+import com.android.tools.r8.DirectoryClassFileProvider
 import com.android.tools.r8.OutputMode
+import com.android.tools.r8.Version
+import com.android.tools.r8.origin.Origin
 
 import com.pranav.android.interfaces.*
+import com.pranav.android.task.BuildMetrics
+import com.pranav.android.task.InMemoryOutput
+import com.pranav.android.task.kotlin.KotlinService
 import com.pranav.common.util.FileUtil
 import com.pranav.project.mode.JavaProject
 
+import java.io.DataInputStream
+import java.io.DataOutputStream
 import java.io.File
+import java.io.IOException
+import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
 import java.util.ArrayList
 
-class D8Task() : Task {
+/*
+ * Dexes the class files of a project incrementally. Every class file is dexed
+ * on its own into an intermediate cache, and only the class files whose
+ * contents changed are dexed again, together with their subclasses and
+ * implementers, as D8 desugars default and static interface methods into
+ * them. The cached dex files are then merged into the final classes.dex.
+ *
+ * When an in-memory output is given, the classes compiled into it are dexed
+ * together with the class files kotlinc wrote on disk, and the dex is kept in
+ * memory.
+ */
+class D8Task @JvmOverloads constructor(private val memoryOutput: InMemoryOutput? = null) : Task {
 
     @Throws(Exception::class)
     override fun doFullTask(project: JavaProject) {
+        if (memoryOutput != null) {
+            doMemoryTask(project, memoryOutput)
+            return
+        }
+        val classesDir = File(project.getBinDirPath(), "classes")
+        val cacheDir = File(project.getBuildDirPath(), "dex")
+        val classesFile = File(project.getCacheDirPath(), "d8.classes")
+        val output = File(project.getBinDirPath(), "classes.dex")
+
+        val previous = if (cacheDir.exists()) loadClasses(classesFile) else hashMapOf()
+        val current = linkedMapOf<String, ClassEntry>()
+        val changed = linkedSetOf<String>()
+        for (classFile in getClassFiles(classesDir)) {
+            val name = classesDir.toPath().relativize(classFile).toString()
+            val hash = FileUtil.getHash(classFile.toFile())
+            val old = previous[name]
+            if (old != null && old.hash == hash && getDexFile(cacheDir, name).exists()) {
+                current[name] = old
+            } else {
+                current[name] = ClassEntry(hash, readSupertypes(classFile.toFile()))
+                changed.add(name)
+            }
+        }
+        val removed = previous.keys.filter { it !in current }
+        addSubtypes(current, changed, removed)
+        BuildMetrics.count("classes", current.size.toLong())
+        BuildMetrics.count("cache.hit", (current.size - changed.size).toLong())
+        BuildMetrics.count("cache.miss", changed.size.toLong())
+        for (name in removed) {
+            getDexFile(cacheDir, name).delete()
+        }
+
+        if (changed.isEmpty() && removed.isEmpty() && output.exists()) {
+            return
+        }
+
+        if (changed.isNotEmpty()) {
+            BuildMetrics.span("dex classes").use {
+                dexClassFiles(classesDir, cacheDir, changed.map { classesDir.toPath().resolve(it) })
+            }
+        }
+
+        // merging already dexed classes is much cheaper than dexing them again
+        BuildMetrics.span("merge").use {
             D8.run(
                     D8Command.builder()
                             .setOutput(Paths.get(project.getBinDirPath()), OutputMode.DexIndexed)
                             .addLibraryFiles(Paths.get(FileUtil.getClasspathDir(), "android.jar"))
-                            .addProgramFiles(
-                                    getClassFiles(File(project.getBinDirPath(), "classes")))
+                            .addProgramFiles(current.keys.map { getDexFile(cacheDir, it).toPath() })
                             .build())
+        }
+        // listing the classes of the build must not need loading the dex
+        DexIndex.write(project)
+
+        saveClasses(classesFile, current)
+    }
+
+    /*
+     * Adds the subclasses and implementers of the changed and removed classes,
+     * whose dex files may hold desugared copies of their methods
+     */
+    private fun addSubtypes(classes: Map<String, ClassEntry>, changed: MutableSet<String>, removed: List<String>) {
+        val subtypes = hashMapOf<String, MutableList<String>>()
+        for ((name, entry) in classes) {
+            for (supertype in entry.supertypes) {
+                subtypes.getOrPut(supertype) { arrayListOf() }.add(name)
+            }
+        }
+        val queue = ArrayDeque<String>()
+        changed.mapTo(queue) { getTypeName(it) }
+        removed.mapTo(queue) { getTypeName(it) }
+        while (queue.isNotEmpty()) {
+            for (name in subtypes[queue.removeFirst()] ?: continue) {
+                if (changed.add(name)) {
+                    queue.add(getTypeName(name))
+                }
+            }
+        }
+    }
+
+    // the internal name of the class stored in the given class file
+    private fun getTypeName(classFile: String): String {
+        return classFile.removeSuffix(".class").replace(File.separatorChar, '/')
+    }
+
+    override fun getCacheKey(project: JavaProject): String {
+        return Version.getVersionString() + "\n" +
+                TaskGraph.describe(listOf(File(FileUtil.getClasspathDir(), "android.jar")))
+    }
+
+    private fun doMemoryTask(project: JavaProject, output: InMemoryOutput) {
+        val classesDir = File(project.getBinDirPath(), "classes")
+        val classes = output.getClasses()
+        var count = classes.size
+        val builder = D8Command.builder()
+                .addLibraryFiles(Paths.get(FileUtil.getClasspathDir(), "android.jar"))
+        for (bytes in classes.values) {
+            builder.addClassProgramData(bytes, Origin.unknown())
+        }
+        // the other class files on disk may be left from sources which no longer exist
+        for (name in KotlinService.loadOutputs(project)) {
+            val classFile = File(classesDir, name.replace('.', File.separatorChar) + ".class")
+            if (name !in classes && classFile.exists()) {
+                builder.addProgramFiles(classFile.toPath())
+                count++
+            }
+        }
+        BuildMetrics.count("classes", count.toLong())
+
+        val dexFiles = sortedMapOf<Int, ByteArray>()
+        builder.setProgramConsumer(
+                object : DexIndexedConsumer.ForwardingConsumer(null) {
+                    override fun accept(
+                            fileIndex: Int,
+                            data: ByteDataView,
+                            descriptors: Set<String>,
+                            handler: DiagnosticsHandler
+                    ) {
+                        synchronized(dexFiles) {
+                            dexFiles[fileIndex] = data.copyByteData()
+                        }
+                    }
+                })
+        D8.run(builder.build())
+        output.setDexFiles(dexFiles.values.toList())
+
+        // the dex on disk is older than the sources now, so whatever lists its
+        // classes builds it again instead of showing classes which may be gone
+        File(project.getBinDirPath()).listFiles { f ->
+            f.name.startsWith("classes") && f.name.endsWith(".dex")
+        }?.forEach { it.delete() }
+    }
+
+    private fun dexClassFiles(classesDir: File, cacheDir: File, classFiles: List<Path>) {
+        // dex into a temporary directory so only the changed dex files get replaced
+        val temp = File(cacheDir.path + ".tmp")
+        temp.deleteRecursively()
+        temp.mkdirs()
+        D8.run(
+                D8Command.builder()
+                        .setIntermediate(true)
+                        .setOutput(temp.toPath(), OutputMode.DexFilePerClassFile)
+                        .addLibraryFiles(Paths.get(FileUtil.getClasspathDir(), "android.jar"))
+                        .addClasspathResourceProvider(
+                                DirectoryClassFileProvider.fromDirectory(classesDir.toPath()))
+                        .addProgramFiles(classFiles)
+                        .build())
+        for (dex in temp.walkTopDown().filter { it.isFile() }) {
+            val target = File(cacheDir, dex.relativeTo(temp).path)
+            target.parentFile?.mkdirs()
+            Files.move(dex.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        }
+        temp.deleteRecursively()
+    }
+
+    private fun getDexFile(cacheDir: File, classFile: String): File {
+        return File(cacheDir, classFile.removeSuffix(".class") + ".dex")
+    }
+
+    private fun loadClasses(file: File): HashMap<String, ClassEntry> {
+        val classes = hashMapOf<String, ClassEntry>()
+        if (!file.exists()) {
+            return classes
+        }
+        try {
+            DataInputStream(file.inputStream().buffered()).use { input ->
+                if (input.readInt() != VERSION) {
+                    return classes
+                }
+                repeat(input.readInt()) {
+                    val name = input.readUTF()
+                    val hash = input.readUTF()
+                    val supertypes = arrayListOf<String>()
+                    repeat(input.readInt()) { supertypes.add(input.readUTF()) }
+                    classes[name] = ClassEntry(hash, supertypes)
+                }
+            }
+        } catch (e: IOException) {
+            // a corrupted cache only costs us a full dex
+            classes.clear()
+        }
+        return classes
+    }
+
+    private fun saveClasses(file: File, classes: Map<String, ClassEntry>) {
+        file.parentFile?.mkdirs()
+        DataOutputStream(file.outputStream().buffered()).use { output ->
+            output.writeInt(VERSION)
+            output.writeInt(classes.size)
+            for ((name, entry) in classes) {
+                output.writeUTF(name)
+                output.writeUTF(entry.hash)
+                output.writeInt(entry.supertypes.size)
+                entry.supertypes.forEach { output.writeUTF(it) }
+            }
+        }
+    }
+
+    /*
+     * Reads the internal names of the superclass and the interfaces from the
+     * header of a class file, skipping over the constant pool
+     */
+    @Throws(IOException::class)
+    private fun readSupertypes(file: File): List<String> {
+        DataInputStream(file.inputStream().buffered()).use { input ->
+            input.readInt()
+            input.readInt()
+            val count = input.readUnsignedShort()
+            val strings = arrayOfNulls<String>(count)
+            val classes = IntArray(count)
+            var index = 1
+            while (index < count) {
+                when (val tag = input.readUnsignedByte()) {
+                    CONSTANT_UTF8 -> strings[index] = input.readUTF()
+                    CONSTANT_CLASS -> classes[index] = input.readUnsignedShort()
+                    CONSTANT_LONG, CONSTANT_DOUBLE -> {
+                        input.readLong()
+                        // takes two entries
+                        index++
+                    }
+                    CONSTANT_METHOD_HANDLE -> {
+                        input.readUnsignedByte()
+                        input.readUnsignedShort()
+                    }
+                    CONSTANT_STRING, CONSTANT_METHOD_TYPE, CONSTANT_MODULE, CONSTANT_PACKAGE ->
+                            input.readUnsignedShort()
+                    CONSTANT_INTEGER, CONSTANT_FLOAT, CONSTANT_FIELD_REF, CONSTANT_METHOD_REF,
+                    CONSTANT_INTERFACE_METHOD_REF, CONSTANT_NAME_AND_TYPE, CONSTANT_DYNAMIC,
+                    CONSTANT_INVOKE_DYNAMIC -> input.readInt()
+                    else -> throw IOException("Unknown constant pool tag " + tag + " in " + file)
+                }
+                index++
+            }
+            // access flags and this class
+            input.readInt()
+            val supertypes = arrayListOf<String>()
+            val superClass = input.readUnsignedShort()
+            if (superClass != 0) {
+                supertypes.add(strings[classes[superClass]]!!)
+            }
+            repeat(input.readUnsignedShort()) {
+                supertypes.add(strings[classes[input.readUnsignedShort()]]!!)
+            }
+            return supertypes
+        }
     }
 
     private fun getClassFiles(root: File) : ArrayList<Path> {
@@ -47,4 +310,28 @@ class D8Task() : Task {
     override fun getTaskName() : String {
         return "D8 Task"
     }
+
+    private class ClassEntry(val hash: String, val supertypes: List<String>)
+
+    companion object {
+        private const val VERSION = 1
+
+        private const val CONSTANT_UTF8 = 1
+        private const val CONSTANT_INTEGER = 3
+        private const val CONSTANT_FLOAT = 4
+        private const val CONSTANT_LONG = 5
+        private const val CONSTANT_DOUBLE = 6
+        private const val CONSTANT_CLASS = 7
+        private const val CONSTANT_STRING = 8
+        private const val CONSTANT_FIELD_REF = 9
+        private const val CONSTANT_METHOD_REF = 10
+        private const val CONSTANT_INTERFACE_METHOD_REF = 11
+        private const val CONSTANT_NAME_AND_TYPE = 12
+        private const val CONSTANT_METHOD_HANDLE = 15
+        private const val CONSTANT_METHOD_TYPE = 16
+        private const val CONSTANT_DYNAMIC = 17
+        private const val CONSTANT_INVOKE_DYNAMIC = 18
+        private const val CONSTANT_MODULE = 19
+        private const val CONSTANT_PACKAGE = 20
+    }
 }
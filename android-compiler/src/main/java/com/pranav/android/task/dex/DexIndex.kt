@@ -0,0 +1,250 @@
+package com.pranav.android.task.dex
+
+import com.pranav.project.mode.JavaProject
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/*
+ * Index of the classes in the dex files of a build, telling which of them
+ * have a main method. It is written next to the dex files whenever D8
+ * produces them, so listing the classes never needs to load the dex.
+ */
+class DexIndex(private val classes: List<String>, private val mainClasses: List<String>) {
+
+    fun getClasses(): Array<String> = classes.toTypedArray()
+
+    /*
+     * Returns the classes declaring a main(String[]) method
+     */
+    fun getMainClasses(): Array<String> = mainClasses.toTypedArray()
+
+    companion object {
+        private const val VERSION = 1
+
+        private const val ACC_PUBLIC = 0x1
+        private const val ACC_STATIC = 0x8
+        private const val MAIN_PARAMETERS = "[Ljava/lang/String;"
+
+        @JvmStatic
+        fun getIndexFile(project: JavaProject): File {
+            return File(project.getBinDirPath(), "classes.index")
+        }
+
+        /*
+         * Indexes the dex files in the bin directory of the project
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun write(project: JavaProject): DexIndex {
+            val dexFiles = getDexFiles(project)
+            val index = fromDex(dexFiles.map { ByteBuffer.wrap(it.readBytes()) })
+            val file = getIndexFile(project)
+            val temp = File(file.path + ".tmp")
+            DataOutputStream(temp.outputStream().buffered()).use { output ->
+                output.writeInt(VERSION)
+                output.writeUTF(getFingerprint(dexFiles))
+                output.writeInt(index.classes.size)
+                val mains = index.mainClasses.toHashSet()
+                for (name in index.classes) {
+                    output.writeUTF(name)
+                    output.writeBoolean(name in mains)
+                }
+            }
+            if (!temp.renameTo(file)) {
+                throw IOException("Unable to write the class index to " + file)
+            }
+            return index
+        }
+
+        /*
+         * Returns the index of the last build, indexing the dex files again if
+         * the index is missing or outdated. Returns null when nothing was built.
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun read(project: JavaProject): DexIndex? {
+            val dexFiles = getDexFiles(project)
+            if (dexFiles.isEmpty()) {
+                return null
+            }
+            val file = getIndexFile(project)
+            if (file.exists()) {
+                try {
+                    DataInputStream(file.inputStream().buffered()).use { input ->
+                        if (input.readInt() == VERSION && input.readUTF() == getFingerprint(dexFiles)) {
+                            val classes = arrayListOf<String>()
+                            val mainClasses = arrayListOf<String>()
+                            repeat(input.readInt()) {
+                                val name = input.readUTF()
+                                classes.add(name)
+                                if (input.readBoolean()) {
+                                    mainClasses.add(name)
+                                }
+                            }
+                            return DexIndex(classes, mainClasses)
+                        }
+                    }
+                } catch (e: IOException) {
+                    // indexed again below
+                }
+            }
+            return write(project)
+        }
+
+        /*
+         * Indexes dex files held in memory
+         */
+        @JvmStatic
+        fun fromDex(buffers: List<ByteBuffer>): DexIndex {
+            val classes = arrayListOf<String>()
+            val mainClasses = arrayListOf<String>()
+            for (buffer in buffers) {
+                DexReader(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN)).read(classes, mainClasses)
+            }
+            classes.sort()
+            mainClasses.sort()
+            return DexIndex(classes, mainClasses)
+        }
+
+        private fun getDexFiles(project: JavaProject): List<File> {
+            val files = File(project.getBinDirPath()).listFiles { f ->
+                f.name.startsWith("classes") && f.name.endsWith(".dex")
+            }
+            return files?.sortedBy { it.name } ?: emptyList()
+        }
+
+        private fun getFingerprint(files: List<File>): String {
+            return files.joinToString(File.pathSeparator) {
+                it.name + ":" + it.length() + ":" + it.lastModified()
+            }
+        }
+    }
+
+    /*
+     * Reads the class definitions of a dex file and the names and prototypes
+     * of their methods, skipping the code of the methods
+     */
+    private class DexReader(private val dex: ByteBuffer) {
+
+        private val stringIdsOff = dex.getInt(0x3C)
+        private val typeIdsOff = dex.getInt(0x44)
+        private val protoIdsOff = dex.getInt(0x4C)
+        private val methodIdsOff = dex.getInt(0x5C)
+        private val classDefsSize = dex.getInt(0x60)
+        private val classDefsOff = dex.getInt(0x64)
+
+        fun read(classes: MutableList<String>, mainClasses: MutableList<String>) {
+            for (i in 0 until classDefsSize) {
+                val classDef = classDefsOff + i * 32
+                val name = getTypeName(dex.getInt(classDef))
+                classes.add(name)
+                val classDataOff = dex.getInt(classDef + 24)
+                if (classDataOff != 0 && hasMain(classDataOff)) {
+                    mainClasses.add(name)
+                }
+            }
+        }
+
+        private fun hasMain(classDataOff: Int): Boolean {
+            dex.position(classDataOff)
+            val staticFields = readUleb128()
+            val instanceFields = readUleb128()
+            val directMethods = readUleb128()
+            val virtualMethods = readUleb128()
+            repeat((staticFields + instanceFields) * 2) { readUleb128() }
+            var methodIndex = 0
+            for (i in 0 until directMethods + virtualMethods) {
+                if (i == directMethods) {
+                    // the indices of the virtual methods start over
+                    methodIndex = 0
+                }
+                methodIndex += readUleb128()
+                val accessFlags = readUleb128()
+                readUleb128()
+                if (isMain(methodIndex, accessFlags)) {
+                    return true
+                }
+            }
+            return false
+        }
+
+        private fun isMain(methodIndex: Int, accessFlags: Int): Boolean {
+            val methodId = methodIdsOff + methodIndex * 8
+            if (getString(dex.getInt(methodId + 4)) != "main") {
+                return false
+            }
+            // public instance main methods are run too
+            if (accessFlags and (ACC_STATIC or ACC_PUBLIC) == 0) {
+                return false
+            }
+            val protoId = protoIdsOff + (dex.getShort(methodId + 2).toInt() and 0xffff) * 12
+            val parametersOff = dex.getInt(protoId + 8)
+            if (parametersOff == 0 || dex.getInt(parametersOff) != 1) {
+                return false
+            }
+            val type = dex.getShort(parametersOff + 4).toInt() and 0xffff
+            return getDescriptor(type) == MAIN_PARAMETERS
+        }
+
+        private fun getTypeName(type: Int): String {
+            val descriptor = getDescriptor(type)
+            if (descriptor.startsWith("L") && descriptor.endsWith(";")) {
+                return descriptor.substring(1, descriptor.length - 1).replace('/', '.')
+            }
+            return descriptor
+        }
+
+        private fun getDescriptor(type: Int): String {
+            return getString(dex.getInt(typeIdsOff + type * 4))
+        }
+
+        private fun getString(index: Int): String {
+            val position = dex.position()
+            try {
+                dex.position(dex.getInt(stringIdsOff + index * 4))
+                val length = readUleb128()
+                return readMutf8(length)
+            } finally {
+                dex.position(position)
+            }
+        }
+
+        private fun readMutf8(length: Int): String {
+            val chars = CharArray(length)
+            for (i in 0 until length) {
+                val a = dex.get().toInt() and 0xff
+                chars[i] = when {
+                    a < 0x80 -> a.toChar()
+                    a and 0xe0 == 0xc0 -> {
+                        val b = dex.get().toInt() and 0x3f
+                        ((a and 0x1f) shl 6 or b).toChar()
+                    }
+                    else -> {
+                        val b = dex.get().toInt() and 0x3f
+                        val c = dex.get().toInt() and 0x3f
+                        ((a and 0x0f) shl 12 or (b shl 6) or c).toChar()
+                    }
+                }
+            }
+            return String(chars)
+        }
+
+        private fun readUleb128(): Int {
+            var result = 0
+            var shift = 0
+            while (true) {
+                val b = dex.get().toInt() and 0xff
+                result = result or (b and 0x7f shl shift)
+                if (b and 0x80 == 0) {
+                    return result
+                }
+                shift += 7
+            }
+        }
+    }
+}
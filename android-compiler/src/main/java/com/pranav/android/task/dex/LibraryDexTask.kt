@@ -0,0 +1,119 @@
+package com.pranav.android.task.dex
+
+import com.android.tools.r8.D8
+import com.android.tools.r8.D8Command
+import com.android.tools.r8.OutputMode
+import com.android.tools.r8.Version
+
+import com.pranav.android.interfaces.*
+import com.pranav.android.task.BuildMetrics
+import com.pranav.common.util.FileUtil
+import com.pranav.project.mode.JavaProject
+
+import java.io.File
+import java.io.IOException
+import java.nio.file.Paths
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+
+/*
+ * Pre-dexes the libraries of a project so that they are ready before the
+ * program is executed. Every library is dexed into its own archive which is
+ * keyed by the hash of the jar and the D8 options, so a replaced jar is
+ * always re-dexed and unchanged jars are never dexed twice.
+ */
+class LibraryDexTask() : Task {
+
+    @Throws(Exception::class)
+    override fun doFullTask(project: JavaProject) {
+        val cacheDir = getCacheDir(project)
+        val libs = File(project.getLibDirPath()).listFiles { f -> f.name.endsWith(".jar") }
+        if (libs == null || libs.isEmpty()) {
+            cacheDir.deleteRecursively()
+            return
+        }
+
+        val keys = hashMapOf<File, String>()
+        for (lib in libs) {
+            keys[lib] = FileUtil.getHash(lib) + "-" + OPTIONS_HASH
+        }
+
+        val pending = libs
+                .filter { !File(cacheDir, keys[it]!! + "/classes.dex").exists() }
+                .distinctBy { keys[it] }
+        BuildMetrics.count("libraries", libs.size.toLong())
+        BuildMetrics.count("cache.hit", (libs.size - pending.size).toLong())
+        BuildMetrics.count("cache.miss", pending.size.toLong())
+        if (pending.isNotEmpty()) {
+            val threads = minOf(pending.size, Runtime.getRuntime().availableProcessors())
+            val executor = Executors.newFixedThreadPool(threads)
+            try {
+                val futures = pending.map { lib ->
+                    executor.submit(Callable { dex(lib, File(cacheDir, keys[lib]!!)) })
+                }
+                for (future in futures) {
+                    try {
+                        future.get()
+                    } catch (e: ExecutionException) {
+                        throw e.cause as? Exception ?: e
+                    }
+                }
+            } finally {
+                executor.shutdownNow()
+            }
+        }
+
+        // remove the archives of libraries which were deleted or replaced
+        val wanted = keys.values.toSet()
+        cacheDir.listFiles()?.forEach {
+            if (it.name !in wanted) {
+                it.deleteRecursively()
+            }
+        }
+    }
+
+    private fun dex(lib: File, outputDir: File) {
+        // dex into a temporary directory first so that an interrupted run
+        // never leaves a half written archive behind
+        val temp = File(outputDir.path + ".tmp")
+        temp.deleteRecursively()
+        temp.mkdirs()
+        D8.run(
+                D8Command.builder()
+                        .setOutput(temp.toPath(), OutputMode.DexIndexed)
+                        .addLibraryFiles(Paths.get(FileUtil.getClasspathDir(), "android.jar"))
+                        .addProgramFiles(lib.toPath())
+                        .build())
+        outputDir.deleteRecursively()
+        if (!temp.renameTo(outputDir)) {
+            throw IOException("Unable to move dexed " + lib.name + " to " + outputDir)
+        }
+    }
+
+    override fun getTaskName(): String {
+        return "Library Dex Task"
+    }
+
+    companion object {
+        // anything that changes the produced dex must be part of the cache key
+        private val OPTIONS_HASH =
+                Integer.toHexString((Version.getVersionString() + ":" + OutputMode.DexIndexed).hashCode())
+
+        @JvmStatic
+        fun getCacheDir(project: JavaProject): File {
+            return File(project.getBuildDirPath(), "libs")
+        }
+
+        /*
+         * Returns the dex files of every library dexed by the last run
+         */
+        @JvmStatic
+        fun getDexFiles(project: JavaProject): List<File> {
+            val archives = getCacheDir(project).listFiles() ?: return emptyList()
+            return archives
+                    .filter { !it.name.endsWith(".tmp") }
+                    .flatMap { it.listFiles { f -> f.name.endsWith(".dex") }?.toList() ?: emptyList() }
+        }
+    }
+}
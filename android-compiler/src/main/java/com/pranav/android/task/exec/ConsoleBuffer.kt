@@ -0,0 +1,100 @@
+package com.pranav.android.task.exec
+
+import java.util.concurrent.ConcurrentLinkedDeque
+
+/*
+ * Bounded buffer holding the most recent output of a program. The output is
+ * stored in fixed size chunks which are never modified once written, so
+ * readers can tail the buffer while the program runs without ever taking a
+ * lock. Only the newest chunks are kept, older output is dropped.
+ */
+class ConsoleBuffer @JvmOverloads constructor(capacity: Int = DEFAULT_CAPACITY) {
+
+    private class Chunk(val start: Long) {
+        val chars = CharArray(CHUNK_SIZE)
+        // published after the chars were copied, so readers only see complete chars
+        @Volatile var length = 0
+    }
+
+    private val maxChunks = maxOf(capacity / CHUNK_SIZE, 1)
+    private val chunks = ConcurrentLinkedDeque<Chunk>()
+    private var chunkCount = 1
+    private var current = Chunk(0)
+
+    init {
+        chunks.add(current)
+    }
+
+    @Synchronized
+    fun append(src: CharArray, offset: Int, length: Int) {
+        var position = offset
+        var remaining = length
+        while (remaining > 0) {
+            var chunk = current
+            if (chunk.length == CHUNK_SIZE) {
+                chunk = Chunk(chunk.start + CHUNK_SIZE)
+                chunks.addLast(chunk)
+                current = chunk
+                if (++chunkCount > maxChunks) {
+                    chunks.pollFirst()
+                    chunkCount--
+                }
+            }
+            val count = minOf(remaining, CHUNK_SIZE - chunk.length)
+            System.arraycopy(src, position, chunk.chars, chunk.length, count)
+            chunk.length += count
+            position += count
+            remaining -= count
+        }
+    }
+
+    fun append(text: String) {
+        append(text.toCharArray(), 0, text.length)
+    }
+
+    /*
+     * Returns the number of chars written since the buffer was created,
+     * including the ones which were already dropped
+     */
+    fun getLength(): Long {
+        val chunk = chunks.peekLast() ?: return 0L
+        return chunk.start + chunk.length
+    }
+
+    /*
+     * Appends the output written after the given position to the builder and
+     * returns the position to continue from. Output which was dropped before
+     * it could be read is skipped.
+     */
+    fun read(from: Long, out: StringBuilder): Long {
+        var position = from
+        for (chunk in chunks) {
+            val end = chunk.start + chunk.length
+            if (end <= position) {
+                continue
+            }
+            val begin = maxOf(position, chunk.start)
+            out.append(chunk.chars, (begin - chunk.start).toInt(), (end - begin).toInt())
+            position = end
+        }
+        return position
+    }
+
+    /*
+     * Returns all the output still held by the buffer
+     */
+    fun snapshot(): String {
+        val out = StringBuilder()
+        val first = chunks.peekFirst()
+        if (first != null && first.start > 0) {
+            out.append("[").append(first.start).append(" characters of output dropped]\n")
+        }
+        read(0, out)
+        return out.toString()
+    }
+
+    companion object {
+        private const val CHUNK_SIZE = 8192
+        const val DEFAULT_CAPACITY = 1 shl 20
+    }
+}
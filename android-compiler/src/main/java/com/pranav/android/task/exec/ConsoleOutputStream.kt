@@ -0,0 +1,81 @@
+package com.pranav.android.task.exec
+
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.charset.CodingErrorAction
+
+/*
+ * Decodes the UTF-8 output of a program into a console buffer. Characters
+ * split across writes are completed by the following write. Writes after
+ * closing are dropped, as a program that was stopped may keep running.
+ */
+class ConsoleOutputStream(private val console: ConsoleBuffer) : OutputStream() {
+
+    private val decoder =
+            Charsets.UTF_8
+                    .newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+    private val bytes = ByteBuffer.allocate(BUFFER_SIZE)
+    private val chars = CharBuffer.allocate(BUFFER_SIZE)
+    private var closed = false
+
+    @Synchronized
+    override fun write(b: Int) {
+        if (closed) {
+            return
+        }
+        bytes.put(b.toByte())
+        decode(false)
+    }
+
+    @Synchronized
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        if (closed) {
+            return
+        }
+        var position = off
+        var remaining = len
+        while (remaining > 0) {
+            val count = minOf(remaining, bytes.remaining())
+            bytes.put(b, position, count)
+            position += count
+            remaining -= count
+            decode(false)
+        }
+    }
+
+    @Synchronized
+    override fun close() {
+        if (closed) {
+            return
+        }
+        closed = true
+        decode(true)
+        decoder.flush(chars)
+        flushChars()
+    }
+
+    private fun decode(endOfInput: Boolean) {
+        bytes.flip()
+        while (decoder.decode(bytes, chars, endOfInput).isOverflow()) {
+            flushChars()
+        }
+        flushChars()
+        // keeps the bytes of an incomplete char for the next write
+        bytes.compact()
+    }
+
+    private fun flushChars() {
+        chars.flip()
+        if (chars.hasRemaining()) {
+            console.append(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining())
+        }
+        chars.clear()
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 8192
+    }
+}
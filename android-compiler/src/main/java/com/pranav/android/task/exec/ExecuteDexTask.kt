@@ -3,29 +3,37 @@ package com.pranav.android.task.exec
 import android.content.Context
 import android.content.SharedPreferences
 
-import dalvik.system.PathClassLoader
+import android.os.Build
 
-import com.android.tools.r8.D8
-import com.android.tools.r8.D8Command
-import com.android.tools.r8.OutputMode
+import dalvik.system.InMemoryDexClassLoader
+import dalvik.system.PathClassLoader
 
 import com.pranav.android.interfaces.*
+import com.pranav.android.task.dex.LibraryDexTask
 import com.pranav.common.util.FileUtil
-import com.pranav.common.util.MultipleDexClassLoader
 import com.pranav.project.mode.JavaProject
 
-import java.io.OutputStream
-import java.io.PrintStream
 import java.io.File
-import java.nio.file.Paths
 import java.lang.reflect.Modifier
-
-class ExecuteDexTask(preferences: SharedPreferences, claz: String) : Task {
+import java.nio.ByteBuffer
+
+/*
+ * When dex buffers are given, the program is loaded straight from memory
+ * instead of from bin/classes.dex
+ */
+class ExecuteDexTask @JvmOverloads constructor(
+        preferences: SharedPreferences,
+        claz: String,
+        private val dexBuffers: List<ByteBuffer>? = null
+) : Task {
 
     private val clazz: String
     private var result: Any? = null
-    private val log = StringBuilder()
+    private val console = ConsoleBuffer()
+    private val input = ProgramInput()
     private val prefs: SharedPreferences
+    @Volatile private var execution: ExecutionEngine.Execution? = null
+    @Volatile private var cancelled = false
 
     init {
         clazz = claz
@@ -37,55 +45,58 @@ class ExecuteDexTask(preferences: SharedPreferences, claz: String) : Task {
     }
 
     /*
-     * Runs the main method pf the program by loading it through
-     * PathClassLoader
+     * Runs the main method of the program on a thread of its own and waits
+     * until it returns, is stopped or runs out of time
      */
     @Throws(Exception::class)
     override fun doFullTask(project: JavaProject) {
-        val defaultOut = System.out
-        val defaultErr = System.err
-        val dexFile = project.getBinDirPath() + "classes.dex"
-        val out =
-                object : OutputStream() {
-                    override fun write(b: Int) {
-                        log.append(b.toChar())
-                    }
-
-                    override fun toString(): String {
-                        return log.toString()
-                    }
-                }
-        System.setOut(PrintStream(out))
-        System.setErr(PrintStream(out))
-
-        // Load the dex file into a ClassLoader
-        val dexLoader = MultipleDexClassLoader()
-
-        dexLoader.loadDex(dexFile)
-
-        val libs = File(project.getLibDirPath()).listFiles()
-        if (libs != null) {
-            // check if all libs have been pre-dexed or not
-            for (lib in libs) {
-                val outDex = project.getBuildDirPath() + lib.getName().replace(".jar", ".dex")
-
-                if (!File(outDex).exists()) {
-                    D8.run(
-                        D8Command.builder()
-                                .setOutput(Paths.get(project.getBuildDirPath()), OutputMode.DexIndexed)
-                                .addLibraryFiles(Paths.get(FileUtil.getClasspathDir(), "android.jar"))
-                                .addProgramFiles(lib.toPath())
-                                .build()
-                    )
-                    File(project.getBuildDirPath(), "classes.dex").renameTo(File(outDex))
-                }
-                // load library into ClassLoader
-                dexLoader.loadDex(outDex)
+        val out = ConsoleOutputStream(console)
+        val streams = ExecutionEngine.Streams(out, out, input)
+        val timeout = prefs.getString("execution_timeout", "0")!!.toLongOrNull() ?: 0L
+        try {
+            val loader = getClassLoader(project)
+            val running = ExecutionEngine.start("Program: " + clazz, streams, Runnable { invokeMain(loader) })
+            execution = running
+            if (cancelled) {
+                running.cancel()
             }
+            running.await(timeout * 1000)
+        } finally {
+            input.close()
+            out.close()
         }
+    }
 
-        val loader = dexLoader.loadDex(FileUtil.getClasspathDir() + "kotlin-stdlib-1.7.10.jar")
+    /*
+     * Stops the program, the program is interrupted so it can finish cleanly
+     */
+    fun cancel() {
+        cancelled = true
+        execution?.cancel()
+    }
+
+    private fun getClassLoader(project: JavaProject): ClassLoader {
+        // libraries are dexed ahead of time by LibraryDexTask
+        val libraries = ArrayList(LibraryDexTask.getDexFiles(project))
+        libraries.add(File(FileUtil.getClasspathDir(), "kotlin-stdlib-1.7.10.jar"))
+        val parent = ExecutionEngine.getLibraryLoader(libraries)
 
+        // the program itself is always loaded again, so its static state starts fresh
+        if (dexBuffers == null) {
+            return PathClassLoader(project.getBinDirPath() + "classes.dex", parent)
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            return InMemoryDexClassLoader(dexBuffers.toTypedArray(), parent)
+        }
+        // only a single dex can be loaded from memory before API 27
+        var loader = parent
+        for (buffer in dexBuffers) {
+            loader = InMemoryDexClassLoader(buffer, loader)
+        }
+        return loader
+    }
+
+    private fun invokeMain(loader: ClassLoader) {
         val calledClass = loader.loadClass(clazz)
 
         val method = calledClass.getDeclaredMethod("main", Array<String>::class.java)
@@ -105,16 +116,28 @@ class ExecuteDexTask(preferences: SharedPreferences, claz: String) : Task {
             result = method.invoke(classInstance, param as? Any)
         }
         if (result != null) {
-            log.append(result.toString())
+            console.append(result.toString())
         }
-        System.setOut(defaultOut)
-        System.setErr(defaultErr)
     }
 
     /*
-     * Returns all the system logs recorded while executing the method
+     * Returns the most recent system logs recorded while executing the method
      */
     fun getLogs(): String {
-        return log.toString()
+        return console.snapshot()
+    }
+
+    /*
+     * Returns the output of the program, which can be read while it runs
+     */
+    fun getConsole(): ConsoleBuffer {
+        return console
+    }
+
+    /*
+     * Returns the standard input of the program
+     */
+    fun getInput(): ProgramInput {
+        return input
     }
 }
@@ -0,0 +1,171 @@
+package com.pranav.android.task.exec
+
+import com.pranav.common.util.MultipleDexClassLoader
+
+import java.io.File
+import java.io.InputStream
+import java.io.OutputStream
+import java.io.PrintStream
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/*
+ * Runs programs on threads of their own. The standard streams of the process
+ * are replaced once by streams which send the output of every thread started
+ * by a program to the streams of its run, so running a program never swaps
+ * the streams of the IDE. The class loader of the libraries is kept between
+ * runs as long as their dex files don't change.
+ */
+object ExecutionEngine {
+
+    class Streams(val out: OutputStream, val err: OutputStream, val input: InputStream)
+
+    /*
+     * A running program, which can be waited for or stopped
+     */
+    class Execution internal constructor(name: String, streams: Streams, body: Runnable) {
+
+        private val finished = CountDownLatch(1)
+        @Volatile private var error: Throwable? = null
+        @Volatile private var cancelled = false
+
+        private val thread =
+                Thread(
+                        {
+                            // inherited by every thread the program starts
+                            current.set(streams)
+                            try {
+                                body.run()
+                            } catch (e: Throwable) {
+                                error = e
+                            } finally {
+                                finished.countDown()
+                            }
+                        },
+                        name)
+
+        init {
+            // a program which ignores being stopped must not keep the IDE alive
+            thread.isDaemon = true
+            thread.start()
+        }
+
+        /*
+         * Interrupts the program and stops waiting for it. There is no way to
+         * kill a thread on Android, so a program ignoring the interrupt keeps
+         * running in the background until it returns.
+         */
+        fun cancel() {
+            cancelled = true
+            thread.interrupt()
+            finished.countDown()
+        }
+
+        /*
+         * Waits for the program to return and rethrows what it threw.
+         * A timeout of 0 waits until the program returns or is stopped.
+         */
+        @Throws(Exception::class)
+        fun await(timeoutMillis: Long) {
+            if (timeoutMillis > 0) {
+                if (!finished.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    cancel()
+                    throw TimeoutException(
+                            "The program didn't finish within " + timeoutMillis / 1000 + "s")
+                }
+            } else {
+                finished.await()
+            }
+            if (cancelled) {
+                throw CancellationException("The program was stopped")
+            }
+            val e = error ?: return
+            throw e as? Exception ?: ExecutionException(e)
+        }
+    }
+
+    private val current = InheritableThreadLocal<Streams?>()
+    private var installed = false
+    private var libraryLoader: ClassLoader? = null
+    private var fingerprint = ""
+
+    @JvmStatic
+    fun start(name: String, streams: Streams, body: Runnable): Execution {
+        install()
+        return Execution(name, streams, body)
+    }
+
+    /*
+     * Returns a class loader for the given dex files and archives, reusing
+     * the one of the last run when none of them changed
+     */
+    @JvmStatic
+    @Synchronized
+    fun getLibraryLoader(dexFiles: List<File>): ClassLoader {
+        val key = getFingerprint(dexFiles)
+        var loader = libraryLoader
+        if (loader == null || key != fingerprint) {
+            val dexLoader = MultipleDexClassLoader()
+            for (dex in dexFiles) {
+                dexLoader.loadDex(dex.absolutePath)
+            }
+            loader = dexLoader.loader
+            libraryLoader = loader
+            fingerprint = key
+        }
+        return loader
+    }
+
+    @Synchronized
+    private fun install() {
+        if (installed) {
+            return
+        }
+        System.setOut(PrintStream(RoutingOutputStream(System.out, false), true, "UTF-8"))
+        System.setErr(PrintStream(RoutingOutputStream(System.err, true), true, "UTF-8"))
+        System.setIn(RoutingInputStream(System.`in`))
+        installed = true
+    }
+
+    private fun getFingerprint(files: List<File>): String {
+        val builder = StringBuilder()
+        for (file in files) {
+            builder.append(file.absolutePath)
+            builder.append(':').append(file.length())
+            builder.append(':').append(file.lastModified())
+            builder.append(File.pathSeparatorChar)
+        }
+        return builder.toString()
+    }
+
+    private class RoutingOutputStream(
+            private val fallback: OutputStream,
+            private val error: Boolean
+    ) : OutputStream() {
+
+        private fun target(): OutputStream {
+            val streams = current.get() ?: return fallback
+            return if (error) streams.err else streams.out
+        }
+
+        override fun write(b: Int) = target().write(b)
+
+        override fun write(b: ByteArray, off: Int, len: Int) = target().write(b, off, len)
+
+        override fun flush() = target().flush()
+    }
+
+    private class RoutingInputStream(private val fallback: InputStream) : InputStream() {
+
+        private fun source(): InputStream = current.get()?.input ?: fallback
+
+        override fun read(): Int = source().read()
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int = source().read(b, off, len)
+
+        override fun available(): Int = source().available()
+    }
+}
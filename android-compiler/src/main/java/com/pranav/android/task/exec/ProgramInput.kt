@@ -0,0 +1,92 @@
+package com.pranav.android.task.exec
+
+import java.io.InputStream
+import java.io.InterruptedIOException
+import java.util.ArrayDeque
+import java.util.concurrent.locks.ReentrantLock
+
+/*
+ * Standard input of a running program. The IDE sends text into it and reads
+ * of the program block until some text was sent or the input was closed.
+ */
+class ProgramInput : InputStream() {
+
+    private val lock = ReentrantLock()
+    private val available = lock.newCondition()
+    private val pending = ArrayDeque<ByteArray>()
+    private var current: ByteArray? = null
+    private var position = 0
+    private var closed = false
+
+    fun send(text: String) {
+        lock.lock()
+        try {
+            if (!closed) {
+                pending.add(text.toByteArray(Charsets.UTF_8))
+                available.signalAll()
+            }
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    override fun read(): Int {
+        val b = ByteArray(1)
+        return if (read(b, 0, 1) == -1) -1 else b[0].toInt() and 0xff
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) {
+            return 0
+        }
+        lock.lock()
+        try {
+            while (true) {
+                val chunk = current
+                if (chunk != null && position < chunk.size) {
+                    val count = minOf(len, chunk.size - position)
+                    System.arraycopy(chunk, position, b, off, count)
+                    position += count
+                    return count
+                }
+                val next = pending.poll()
+                if (next != null) {
+                    current = next
+                    position = 0
+                    continue
+                }
+                if (closed) {
+                    return -1
+                }
+                try {
+                    available.await()
+                } catch (e: InterruptedException) {
+                    // the program was stopped while waiting for input
+                    Thread.currentThread().interrupt()
+                    throw InterruptedIOException()
+                }
+            }
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    override fun available(): Int {
+        lock.lock()
+        try {
+            return (current?.size ?: 0) - position + pending.sumOf { it.size }
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    override fun close() {
+        lock.lock()
+        try {
+            closed = true
+            available.signalAll()
+        } finally {
+            lock.unlock()
+        }
+    }
+}
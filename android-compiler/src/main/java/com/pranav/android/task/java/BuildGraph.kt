@@ -0,0 +1,128 @@
+package com.pranav.android.task.java
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+
+/*
+ * Persistent per-source dependency graph used for incremental builds.
+ * For every source file it records the hash of its contents, the classes
+ * it emits and the types it references, by their qualified or simple names.
+ */
+class BuildGraph(private val file: File) {
+
+    class Node(val hash: String) {
+        val emits = linkedSetOf<String>()
+        val references = linkedSetOf<String>()
+    }
+
+    private val nodes = hashMapOf<String, Node>()
+
+    init {
+        load()
+    }
+
+    fun load() {
+        nodes.clear()
+        if (!file.exists()) {
+            return
+        }
+        try {
+            DataInputStream(file.inputStream().buffered()).use { input ->
+                if (input.readInt() != VERSION) {
+                    return
+                }
+                repeat(input.readInt()) {
+                    val path = input.readUTF()
+                    val node = Node(input.readUTF())
+                    repeat(input.readInt()) { node.emits.add(input.readUTF()) }
+                    repeat(input.readInt()) { node.references.add(input.readUTF()) }
+                    nodes[path] = node
+                }
+            }
+        } catch (e: IOException) {
+            // a corrupted graph only costs us a full build
+            nodes.clear()
+        }
+    }
+
+    @Throws(IOException::class)
+    fun flush() {
+        file.parentFile?.mkdirs()
+        val temp = File(file.path + ".tmp")
+        DataOutputStream(temp.outputStream().buffered()).use { output ->
+            output.writeInt(VERSION)
+            output.writeInt(nodes.size)
+            for ((path, node) in nodes) {
+                output.writeUTF(path)
+                output.writeUTF(node.hash)
+                output.writeInt(node.emits.size)
+                node.emits.forEach { output.writeUTF(it) }
+                output.writeInt(node.references.size)
+                node.references.forEach { output.writeUTF(it) }
+            }
+        }
+        if (!temp.renameTo(file)) {
+            throw IOException("Unable to write build graph to " + file)
+        }
+    }
+
+    fun clear() = nodes.clear()
+
+    fun getSources(): Set<String> = nodes.keys.toSet()
+
+    fun getNode(path: String): Node? = nodes[path]
+
+    fun put(path: String, node: Node) {
+        nodes[path] = node
+    }
+
+    fun remove(path: String): Node? = nodes.remove(path)
+
+    fun isChanged(path: String, hash: String): Boolean = nodes[path]?.hash != hash
+
+    /*
+     * Returns every source which references at least one of the given types,
+     * either by their qualified or by their simple names
+     */
+    fun getDependents(types: Set<String>): Set<String> {
+        if (types.isEmpty()) {
+            return emptySet()
+        }
+        val names = types.toHashSet()
+        for (type in types) {
+            names.add(type.substring(maxOf(type.lastIndexOf('.'), type.lastIndexOf('$')) + 1))
+        }
+        val dependents = hashSetOf<String>()
+        for ((path, node) in nodes) {
+            if (node.references.any { it in names }) {
+                dependents.add(path)
+            }
+        }
+        return dependents
+    }
+
+    companion object {
+        private const val VERSION = 2
+
+        /*
+         * Deletes the class files emitted by a source, including any
+         * nested classes that are not tracked individually
+         */
+        @JvmStatic
+        fun deleteClasses(output: File, node: Node?) {
+            if (node == null) {
+                return
+            }
+            for (name in node.emits) {
+                val classFile = File(output, name.replace('.', '/') + ".class")
+                classFile.delete()
+                val prefix = classFile.name.removeSuffix(".class") + "$"
+                classFile.parentFile?.listFiles { f -> f.name.startsWith(prefix) }?.forEach {
+                    it.delete()
+                }
+            }
+        }
+    }
+}
@@ -5,20 +5,32 @@ import android.content.SharedPreferences
 
 import com.pranav.android.exception.CompilationFailedException
 import com.pranav.android.interfaces.*
+import com.pranav.android.task.BuildMetrics
 import com.pranav.common.util.FileUtil
 import com.pranav.project.mode.JavaProject
 
-import org.eclipse.jdt.internal.compiler.batch.Main
+import org.eclipse.jdt.core.compiler.CharOperation
+import org.eclipse.jdt.internal.compiler.CompilationResult
+import org.eclipse.jdt.internal.compiler.Compiler
+import org.eclipse.jdt.internal.compiler.DefaultErrorHandlingPolicies
+import org.eclipse.jdt.internal.compiler.ICompilerRequestor
+import org.eclipse.jdt.internal.compiler.batch.CompilationUnit
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit
+import org.eclipse.jdt.internal.compiler.impl.CompilerOptions
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblemFactory
 
 import java.io.File
-import java.io.IOException
-import java.io.OutputStream
-import java.io.PrintWriter
 import java.util.ArrayList
-
+import java.util.Locale
+
+/*
+ * Compiles the sources with ECJ incrementally. Only the sources which changed
+ * since the last build and the sources referencing their types are compiled,
+ * every other type is read from the class files of the previous builds
+ * through the name environment kept by EcjService.
+ */
 class ECJCompilationTask(preferences: SharedPreferences) : Task {
 
-    private val errs = StringBuilder()
     private val prefs: SharedPreferences
 
     init {
@@ -29,59 +41,187 @@ class ECJCompilationTask(preferences: SharedPreferences) : Task {
         return "ECJ Compilation Task"
     }
 
+    override fun getCacheKey(project: JavaProject): String {
+        // ecj has no version of its own, the latest supported java version changes with it
+        return CompilerOptions.getLatestVersion() + "\n" +
+                getOptions().getMap().toSortedMap() + "\n" +
+                TaskGraph.describe(getClasspath(project))
+    }
+
     @Throws(Exception::class)
     override fun doFullTask(project: JavaProject) {
+        val output = File(project.getBinDirPath(), "classes")
 
-        val writer =
-                PrintWriter(
-                        object : OutputStream() {
-                            override fun write(p1: Int) {
-                                errs.append(p1.toChar())
-                            }
-                        })
+        val graph = BuildGraph(File(project.getCacheDirPath(), "ecj.graph"))
+        // javac doesn't know about the class files written by ecj
+        File(project.getCacheDirPath(), "javac.graph").delete()
+        if (!output.exists()) {
+            graph.clear()
+            output.mkdirs()
+        }
+        val javaFiles = getSourceFiles(File(project.getSrcDirPath()))
+
+        // find the sources whose contents changed since the last build
+        val hashes = hashMapOf<String, String>()
+        val dirty = hashSetOf<String>()
+        for (file in javaFiles) {
+            val path = file.absolutePath
+            val hash = FileUtil.getHash(file)
+            hashes[path] = hash
+            if (graph.isChanged(path, hash)) {
+                dirty.add(path)
+            }
+        }
+        val removed = graph.getSources() - hashes.keys
+
+        // sources referencing a type of a changed source need to be recompiled too
+        val changedTypes = hashSetOf<String>()
+        for (path in dirty) {
+            graph.getNode(path)?.let { changedTypes.addAll(it.emits) }
+        }
+        for (path in removed) {
+            val node = graph.remove(path)
+            node?.let { changedTypes.addAll(it.emits) }
+            BuildGraph.deleteClasses(output, node)
+        }
+        graph.getDependents(changedTypes).filterTo(dirty) { it in hashes }
 
-        val main = Main(writer, writer, false, null, null)
+        BuildMetrics.count("sources", javaFiles.size.toLong())
+        BuildMetrics.count("sources.compiled", dirty.size.toLong())
+        if (dirty.isEmpty()) {
+            graph.flush()
+            return
+        }
 
-        val output = File(project.getBinDirPath(), "classes")
+        // the old class files must not be resolved while their sources are compiled
+        val units = arrayListOf<ICompilationUnit>()
+        for (file in javaFiles) {
+            if (file.absolutePath in dirty) {
+                BuildGraph.deleteClasses(output, graph.getNode(file.absolutePath))
+                units.add(CompilationUnit(FileUtil.readFile(file).toCharArray(), file.absolutePath, null))
+            }
+        }
+        EcjService.classesChanged(changedTypes)
+
+        val errors = StringBuilder()
+        val warnings = StringBuilder()
+        val nodes = hashMapOf<String, BuildGraph.Node>()
+        val requestor = ICompilerRequestor { result ->
+            val path = String(result.getFileName())
+            appendProblems(result, errors, warnings)
+            // sources with errors stay dirty, so they are compiled again by the next build
+            if (result.hasErrors()) {
+                return@ICompilerRequestor
+            }
+            val node = BuildGraph.Node(hashes[path]!!)
+            for (classFile in result.getClassFiles()) {
+                val name = String(classFile.fileName())
+                val file = File(output, "$name.class")
+                file.parentFile?.mkdirs()
+                file.writeBytes(classFile.getBytes())
+                node.emits.add(name.replace('/', '.'))
+            }
+            result.qualifiedReferences?.forEach { node.references.add(CharOperation.toString(it)) }
+            // types of the default package are only referenced by their simple names
+            result.simpleNameReferences?.forEach { node.references.add(String(it)) }
+            nodes[path] = node
+        }
 
-        val classpath = StringBuilder()
-        classpath.append(FileUtil.getClasspathDir() + "android.jar")
-        classpath.append(File.pathSeparator)
-        classpath.append(FileUtil.getClasspathDir() + "core-lambda-stubs.jar")
-        classpath.append(File.pathSeparator)
-        classpath.append(FileUtil.getClasspathDir() + "kotlin-stdlib-1.7.10.jar")
-        classpath.append(File.pathSeparator)
-        classpath.append(output)
+        BuildMetrics.span("ecj").use {
+            EcjService.withEnvironment(getClasspath(project), output) { environment ->
+                Compiler(
+                                environment,
+                                DefaultErrorHandlingPolicies.proceedWithAllProblems(),
+                                getOptions(),
+                                requestor,
+                                DefaultProblemFactory(Locale.getDefault()))
+                        .compile(units.toTypedArray())
+            }
+        }
+        JavacService.classOutputChanged()
+
+        for (path in dirty) {
+            graph.remove(path)
+        }
+        for ((path, node) in nodes) {
+            graph.put(path, node)
+        }
+        graph.flush()
+
+        if (errors.isNotEmpty()) {
+            throw CompilationFailedException(warnings.toString() + "\n" + errors.toString())
+        }
+    }
+
+    private fun getOptions(): CompilerOptions {
+        val version = prefs.getString("version", "7")!!
+        val level = if (version.toInt() < 9) "1.$version" else version
+        val settings = hashMapOf<String, String>()
+        settings[CompilerOptions.OPTION_Source] = level
+        settings[CompilerOptions.OPTION_Compliance] = level
+        settings[CompilerOptions.OPTION_TargetPlatform] = level
+        settings[CompilerOptions.OPTION_LocalVariableAttribute] = CompilerOptions.GENERATE
+        settings[CompilerOptions.OPTION_LineNumberAttribute] = CompilerOptions.GENERATE
+        settings[CompilerOptions.OPTION_SourceFileAttribute] = CompilerOptions.GENERATE
+        settings[CompilerOptions.OPTION_Process_Annotations] = CompilerOptions.DISABLED
+        val options = CompilerOptions(settings)
+        // the references are needed to find the dependents of a changed source
+        options.produceReferenceInfo = true
+        return options
+    }
+
+    private fun appendProblems(result: CompilationResult, errors: StringBuilder, warnings: StringBuilder) {
+        val problems = result.getProblems() ?: return
+        for (problem in problems) {
+            val message = StringBuilder()
+            message.append(String(problem.getOriginatingFileName()))
+            message.append(":")
+            message.append(problem.getSourceLineNumber())
+            message.append(": ")
+            message.append(if (problem.isError()) "ERROR" else "WARNING")
+            message.append(": ")
+            message.append(problem.getMessage())
+            message.append("\n")
+            if (problem.isError()) {
+                errors.append(message)
+            } else {
+                warnings.append(message)
+            }
+        }
+    }
+
+    private fun getClasspath(project: JavaProject): List<File> {
+        val classpath = arrayListOf<File>()
+        classpath.add(File(FileUtil.getClasspathDir(), "android.jar"))
+        classpath.add(File(FileUtil.getClasspathDir(), "core-lambda-stubs.jar"))
+        classpath.add(File(FileUtil.getClasspathDir(), "kotlin-stdlib-1.7.10.jar"))
         val clspath = prefs.getString("classpath", "")
-        if (!clspath!!.isEmpty() && classpath.length > 0) {
-            classpath.append(File.pathSeparator)
-            classpath.append(clspath)
+        if (!clspath!!.isEmpty()) {
+            for (path in clspath.split(File.pathSeparator)) {
+                classpath.add(File(path))
+            }
         }
         val libs = File(project.getLibDirPath()).listFiles()
         if (libs != null) {
             for (lib in libs) {
-                classpath.append(File.pathSeparator)
-                classpath.append(lib.absolutePath)
+                classpath.add(lib)
             }
         }
+        return classpath
+    }
 
-        val args = arrayListOf<String>(
-            "-g",
-            "-" + prefs.getString("version", "7"),
-            "-d",
-            output.getAbsolutePath(),
-            "-cp",
-            classpath.toString(),
-            "-proc:none",
-            "-sourcepath",
-            " ",
-            project.getSrcDirPath()
-        )
-
-        main.compile(args.toTypedArray())
-
-        if (main.globalErrorsCount > 0 || !output.exists()) {
-            throw CompilationFailedException(errs.toString())
+    private fun getSourceFiles(path: File): ArrayList<File> {
+        val sourceFiles = arrayListOf<File>()
+        val files = path.listFiles() ?: return sourceFiles
+        for (file in files) {
+            if (file.isFile()) {
+                if (file.name.endsWith(".java")) {
+                    sourceFiles.add(file)
+                }
+            } else {
+                sourceFiles.addAll(getSourceFiles(file))
+            }
         }
+        return sourceFiles
     }
 }
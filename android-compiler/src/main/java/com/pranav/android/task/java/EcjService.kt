@@ -0,0 +1,153 @@
+package com.pranav.android.task.java
+
+import org.eclipse.jdt.core.compiler.CharOperation
+import org.eclipse.jdt.internal.compiler.batch.FileSystem
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer
+
+import java.io.File
+import java.io.IOException
+
+/*
+ * Long lived name environment for ECJ. The archives on the classpath are
+ * opened and indexed once and stay open between builds, and the class files
+ * of the project that were already read are kept until they change.
+ */
+object EcjService {
+
+    private class CachedType(val length: Long, val lastModified: Long, val type: ClassFileReader)
+
+    private var fileSystem: FileSystem? = null
+    private var fingerprint = ""
+    private var output: File? = null
+    // class file path relative to the output -> binary type
+    private val binaryTypes = hashMapOf<String, CachedType>()
+
+    /*
+     * Runs the worker with a name environment resolving types from the given
+     * classpath and the class files already compiled into the output.
+     * Only one compilation runs at a time as the environment is shared.
+     */
+    @JvmStatic
+    @Synchronized
+    fun <T> withEnvironment(
+            classpath: List<File>,
+            output: File,
+            worker: (INameEnvironment) -> T
+    ): T {
+        if (output != this.output) {
+            binaryTypes.clear()
+            this.output = output
+        }
+        return worker(Environment(getFileSystem(classpath), output))
+    }
+
+    /*
+     * Drops the cached class files of the given classes and their nested
+     * classes, for class files that may be rewritten within the resolution
+     * of the file timestamps
+     */
+    @JvmStatic
+    @Synchronized
+    fun classesChanged(names: Collection<String>) {
+        if (names.isEmpty()) {
+            return
+        }
+        val paths = names.map { it.replace('.', '/') }
+        binaryTypes.keys.removeAll { key -> paths.any { key == it || key.startsWith(it + "$") } }
+    }
+
+    @JvmStatic
+    @Synchronized
+    fun invalidate() {
+        fileSystem?.cleanup()
+        fileSystem = null
+        fingerprint = ""
+        binaryTypes.clear()
+    }
+
+    private fun getFileSystem(classpath: List<File>): FileSystem {
+        val current = getFingerprint(classpath)
+        var environment = fileSystem
+        if (environment == null || current != fingerprint) {
+            invalidate()
+            environment = FileSystem(classpath.map { it.absolutePath }.toTypedArray(), null, null)
+            fileSystem = environment
+            fingerprint = current
+        }
+        return environment
+    }
+
+    private fun getFingerprint(files: List<File>): String {
+        val builder = StringBuilder()
+        for (file in files) {
+            builder.append(file.absolutePath)
+            if (file.isFile()) {
+                builder.append(':').append(file.length())
+                builder.append(':').append(file.lastModified())
+            }
+            builder.append(File.pathSeparatorChar)
+        }
+        return builder.toString()
+    }
+
+    private fun findClassFile(output: File, path: String): NameEnvironmentAnswer? {
+        val file = File(output, "$path.class")
+        if (!file.isFile()) {
+            binaryTypes.remove(path)
+            return null
+        }
+        var cached = binaryTypes[path]
+        if (cached == null ||
+                cached.length != file.length() ||
+                cached.lastModified != file.lastModified()) {
+            val reader =
+                    try {
+                        ClassFileReader.read(file)
+                    } catch (e: IOException) {
+                        return null
+                    } catch (e: ClassFormatException) {
+                        return null
+                    }
+            cached = CachedType(file.length(), file.lastModified(), reader)
+            binaryTypes[path] = cached
+        }
+        return NameEnvironmentAnswer(cached.type, null)
+    }
+
+    private class Environment(
+            private val fileSystem: FileSystem,
+            private val output: File
+    ) : INameEnvironment {
+
+        override fun findType(compoundTypeName: Array<CharArray>): NameEnvironmentAnswer? {
+            return fileSystem.findType(compoundTypeName)
+                    ?: findClassFile(output, String(CharOperation.concatWith(compoundTypeName, '/')))
+        }
+
+        override fun findType(
+                typeName: CharArray,
+                packageName: Array<CharArray>?
+        ): NameEnvironmentAnswer? {
+            return fileSystem.findType(typeName, packageName)
+                    ?: findClassFile(output, getPath(packageName, typeName))
+        }
+
+        override fun isPackage(parentPackageName: Array<CharArray>?, packageName: CharArray): Boolean {
+            return fileSystem.isPackage(parentPackageName, packageName) ||
+                    File(output, getPath(parentPackageName, packageName)).isDirectory()
+        }
+
+        // the archives stay open for the next build
+        override fun cleanup() {}
+
+        private fun getPath(parent: Array<CharArray>?, name: CharArray): String {
+            if (parent == null || parent.isEmpty()) {
+                return String(name)
+            }
+            return String(CharOperation.concatWith(parent, '/')) + "/" + String(name)
+        }
+    }
+}
@@ -5,30 +5,50 @@ import android.content.SharedPreferences;
 
 import com.pranav.android.exception.CompilationFailedException;
 import com.pranav.android.interfaces.*;
-import com.pranav.common.Indexer;
+import com.pranav.android.task.BuildMetrics;
+import com.pranav.android.task.InMemoryOutput;
 import com.pranav.common.util.FileUtil;
 import com.pranav.project.mode.JavaProject;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MemberSelectTree;
 import com.sun.source.util.JavacTask;
-import com.sun.tools.javac.api.JavacTool;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
 
 import javax.tools.DiagnosticCollector;
 import javax.tools.JavaFileObject;
 import javax.tools.SimpleJavaFileObject;
-import javax.tools.StandardLocation;
 
 public class JavacCompilationTask implements Task {
 
     private final SharedPreferences prefs;
+    private final InMemoryOutput memoryOutput;
 
     public JavacCompilationTask(SharedPreferences preferences) {
+        this(preferences, null);
+    }
+
+    /*
+     * When an output is given, the classes are compiled into it instead of bin/classes
+     */
+    public JavacCompilationTask(SharedPreferences preferences, InMemoryOutput output) {
         prefs = preferences;
+        memoryOutput = output;
     }
 
     @Override
@@ -36,8 +56,29 @@ public class JavacCompilationTask implements Task {
         return "Javac Compilation Task";
     }
 
+    @Override
+    public String getCacheKey(JavaProject project) {
+        final var output = new File(project.getBinDirPath(), "classes");
+        final var classpath = getPlatformClasspath();
+        for (var file : getClasspath(project)) {
+            // the classes written by the earlier tasks are tracked by the build graph
+            if (!file.equals(output)) {
+                classpath.add(file);
+            }
+        }
+        return com.sun.tools.javac.main.JavaCompiler.version()
+                + "\n"
+                + getArgs(prefs.getString("version", "7"))
+                + "\n"
+                + TaskGraph.describe(classpath);
+    }
+
     @Override
     public void doFullTask(JavaProject project) throws Exception {
+        if (memoryOutput != null) {
+            doMemoryTask(project);
+            return;
+        }
 
         final var output = new File(project.getBinDirPath(), "classes");
 
@@ -45,20 +86,61 @@ public class JavacCompilationTask implements Task {
 
         final var diagnostics = new DiagnosticCollector<JavaFileObject>();
 
-        var lastBuildTime = new Indexer(project.getProjectName(), project.getCacheDirPath()).getLong("lastBuildTime");
+        final var graph = new BuildGraph(new File(project.getCacheDirPath(), "javac.graph"));
+        // ecj doesn't know about the class files written by javac
+        new File(project.getCacheDirPath(), "ecj.graph").delete();
         if (!output.exists()) {
-            lastBuildTime = 0;
+            graph.clear();
             output.mkdirs();
         }
-        final var javaFileObjects = new ArrayList<JavaFileObject>();
         final var javaFiles = getSourceFiles(new File(project.getSrcDirPath()));
+
+        // find the sources whose contents changed since the last build
+        final var hashes = new HashMap<String, String>();
+        final var dirty = new HashSet<String>();
+        for (var file : javaFiles) {
+            var path = file.getAbsolutePath();
+            var hash = FileUtil.getHash(file);
+            hashes.put(path, hash);
+            if (graph.isChanged(path, hash)) {
+                dirty.add(path);
+            }
+        }
+        final var removed = new HashSet<String>(graph.getSources());
+        removed.removeAll(hashes.keySet());
+
+        // sources referencing a type of a changed source need to be recompiled too
+        final var changedTypes = new HashSet<String>();
+        for (var path : dirty) {
+            var node = graph.getNode(path);
+            if (node != null) {
+                changedTypes.addAll(node.getEmits());
+            }
+        }
+        for (var path : removed) {
+            var node = graph.remove(path);
+            if (node != null) {
+                changedTypes.addAll(node.getEmits());
+            }
+            BuildGraph.deleteClasses(output, node);
+        }
+        for (var path : graph.getDependents(changedTypes)) {
+            if (hashes.containsKey(path)) {
+                dirty.add(path);
+            }
+        }
+
+        BuildMetrics.count("sources", javaFiles.size());
+        BuildMetrics.count("sources.compiled", dirty.size());
+        if (dirty.isEmpty()) {
+            graph.flush();
+            return;
+        }
+
+        final var javaFileObjects = new ArrayList<JavaFileObject>();
         for (var file : javaFiles) {
-            if (file.lastModified() > lastBuildTime) {
-                var path = file.getAbsolutePath();
-                new File(
-                                output,
-                                path.replaceFirst(project.getSrcDirPath(), ""))
-                        .delete();
+            if (dirty.contains(file.getAbsolutePath())) {
+                BuildGraph.deleteClasses(output, graph.getNode(file.getAbsolutePath()));
                 javaFileObjects.add(
                         new SimpleJavaFileObject(file.toURI(), JavaFileObject.Kind.SOURCE) {
                             @Override
@@ -70,23 +152,89 @@ public class JavacCompilationTask implements Task {
             }
         }
 
-        if (javaFileObjects.isEmpty()) {
+        final var args = getArgs(version);
+
+        // the compiler itself is kept warm between builds by JavacService
+        final var nodes = new HashMap<String, BuildGraph.Node>();
+        final boolean success;
+        try (var span = BuildMetrics.span("javac")) {
+            success =
+                    JavacService.withTask(
+                            getPlatformClasspath(),
+                            getClasspath(project),
+                            javaFiles,
+                            output,
+                            diagnostics,
+                            args,
+                            javaFileObjects,
+                            task -> {
+                                task.addTaskListener(new DependencyCollector(task, hashes, nodes));
+                                return task.call();
+                            });
+        }
+        // the pooled symbol tables may still reference the old class files
+        JavacService.classOutputChanged();
+
+        if (!success) {
+            // the class files of the dirty sources are gone, so they must be compiled again
+            for (var path : dirty) {
+                graph.remove(path);
+            }
+            graph.flush();
+            throw new CompilationFailedException(getMessage(diagnostics));
+        }
+        for (var entry : nodes.entrySet()) {
+            graph.put(entry.getKey(), entry.getValue());
+        }
+        graph.flush();
+    }
+
+    /*
+     * Compiles every source into memory, for builds which are only run and
+     * never need the class files on disk
+     */
+    private void doMemoryTask(JavaProject project) throws Exception {
+        final var version = prefs.getString("version", "7");
+        final var diagnostics = new DiagnosticCollector<JavaFileObject>();
+        final var javaFiles = getSourceFiles(new File(project.getSrcDirPath()));
+        BuildMetrics.count("sources", javaFiles.size());
+        BuildMetrics.count("sources.compiled", javaFiles.size());
+        if (javaFiles.isEmpty()) {
             return;
         }
 
-        final var tool = JavacTool.create();
+        final var javaFileObjects = new ArrayList<JavaFileObject>();
+        for (var file : javaFiles) {
+            javaFileObjects.add(
+                    new SimpleJavaFileObject(file.toURI(), JavaFileObject.Kind.SOURCE) {
+                        @Override
+                        public CharSequence getCharContent(boolean ignoreEncodingErrors)
+                                throws IOException {
+                            return FileUtil.readFile(file);
+                        }
+                    });
+        }
 
-        final var standardJavaFileManager =
-                tool.getStandardFileManager(
-                        diagnostics, Locale.getDefault(), Charset.defaultCharset());
-        standardJavaFileManager.setLocation(
-                    StandardLocation.CLASS_OUTPUT, Collections.singletonList(output));
-        standardJavaFileManager.setLocation(
-                    StandardLocation.PLATFORM_CLASS_PATH, getPlatformClasspath());
-        standardJavaFileManager.setLocation(StandardLocation.CLASS_PATH, getClasspath(project));
-        standardJavaFileManager.setLocation(StandardLocation.SOURCE_PATH, javaFiles);
+        final boolean success;
+        try (var span = BuildMetrics.span("javac")) {
+            success =
+                    JavacService.withMemoryTask(
+                            getPlatformClasspath(),
+                            getClasspath(project),
+                            javaFiles,
+                            memoryOutput.getClasses(),
+                            diagnostics,
+                            getArgs(version),
+                            javaFileObjects,
+                            task -> task.call());
+        }
+        if (!success) {
+            throw new CompilationFailedException(getMessage(diagnostics));
+        }
+    }
 
-        final var args = new ArrayList<String>();
+    private ArrayList<String> getArgs(String version) {
+        var args = new ArrayList<String>();
 
         args.add("-proc:none");
         args.add("-Xlint:-options");
@@ -98,54 +246,123 @@ public class JavacCompilationTask implements Task {
             args.add("--system");
             args.add(FileUtil.getDataDir() + "compiler-modules");
         }
+        return args;
+    }
 
-        final var task =
-                (JavacTask)
-                        tool.getTask(
-                                null,
-                                standardJavaFileManager,
-                                diagnostics,
-                                args,
-                                null,
-                                javaFileObjects);
-
-        if (!task.call()) {
-            var errs = new StringBuilder();
-            var warns = new StringBuilder();
-            for (var diagnostic : diagnostics.getDiagnostics()) {
-                var message = new StringBuilder();
-                if (diagnostic.getSource() != null) {
-                    message.append(diagnostic.getSource().getName());
-                    message.append(":");
-                    message.append(diagnostic.getLineNumber());
-                    message.append(": ");
-                }
-                message.append(diagnostic.getKind().name());
+    private String getMessage(DiagnosticCollector<JavaFileObject> diagnostics) {
+        var errs = new StringBuilder();
+        var warns = new StringBuilder();
+        for (var diagnostic : diagnostics.getDiagnostics()) {
+            var message = new StringBuilder();
+            if (diagnostic.getSource() != null) {
+                message.append(diagnostic.getSource().getName());
+                message.append(":");
+                message.append(diagnostic.getLineNumber());
                 message.append(": ");
-                message.append(diagnostic.getMessage(Locale.getDefault()));
-
-                switch (diagnostic.getKind()) {
-                    case ERROR:
-                    case OTHER:
-                        errs.append(message.toString());
-                        errs.append("\n");
-                        break;
-                    case NOTE:
-                    case WARNING:
-                    case MANDATORY_WARNING:
-                        warns.append(message.toString());
-                        warns.append("\n");
-                        break;
-                    default:
-                        warns.append(message.toString());
-                }
             }
-            var errors = errs.toString();
-            var warnings = warns.toString();
+            message.append(diagnostic.getKind().name());
+            message.append(": ");
+            message.append(diagnostic.getMessage(Locale.getDefault()));
 
-            throw new CompilationFailedException(warnings + "\n" + errors);
+            switch (diagnostic.getKind()) {
+                case ERROR:
+                case OTHER:
+                    errs.append(message.toString());
+                    errs.append("\n");
+                    break;
+                case NOTE:
+                case WARNING:
+                case MANDATORY_WARNING:
+                    warns.append(message.toString());
+                    warns.append("\n");
+                    break;
+                default:
+                    warns.append(message.toString());
+            }
+        }
+        var errors = errs.toString();
+        var warnings = warns.toString();
+        return warnings + "\n" + errors;
+    }
+
+    /*
+     * Records the classes emitted and the types referenced by every
+     * compiled source so they can be stored in the build graph
+     */
+    private static class DependencyCollector implements TaskListener {
+
+        private final Trees trees;
+        private final Elements elements;
+        private final Map<String, String> hashes;
+        private final Map<String, BuildGraph.Node> nodes;
+
+        DependencyCollector(
+                JavacTask task, Map<String, String> hashes, Map<String, BuildGraph.Node> nodes) {
+            this.trees = Trees.instance(task);
+            this.elements = task.getElements();
+            this.hashes = hashes;
+            this.nodes = nodes;
+        }
+
+        @Override
+        public void finished(TaskEvent e) {
+            if (e.getSourceFile() == null || e.getTypeElement() == null) {
+                return;
+            }
+            var path = new File(e.getSourceFile().toUri()).getAbsolutePath();
+            var hash = hashes.get(path);
+            if (hash == null) {
+                return;
+            }
+            var node = nodes.computeIfAbsent(path, k -> new BuildGraph.Node(hash));
+            switch (e.getKind()) {
+                case ANALYZE:
+                    var classPath = trees.getPath(e.getTypeElement());
+                    if (classPath != null) {
+                        new ReferenceScanner(node.getReferences()).scan(classPath, null);
+                    }
+                    break;
+                case GENERATE:
+                    node.getEmits().add(getName(e.getTypeElement()));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private String getName(TypeElement element) {
+            return elements.getBinaryName(element).toString();
+        }
+
+        private class ReferenceScanner extends TreePathScanner<Void, Void> {
+
+            private final Set<String> references;
+
+            ReferenceScanner(Set<String> references) {
+                this.references = references;
+            }
+
+            @Override
+            public Void visitIdentifier(IdentifierTree node, Void p) {
+                addReference(trees.getElement(getCurrentPath()));
+                return super.visitIdentifier(node, p);
+            }
+
+            @Override
+            public Void visitMemberSelect(MemberSelectTree node, Void p) {
+                addReference(trees.getElement(getCurrentPath()));
+                return super.visitMemberSelect(node, p);
+            }
+
+            private void addReference(Element element) {
+                while (element != null && !(element instanceof TypeElement)) {
+                    element = element.getEnclosingElement();
+                }
+                if (element != null) {
+                    references.add(getName((TypeElement) element));
+                }
+            }
         }
-        new Indexer(project.getProjectName(), project.getCacheDirPath()).put("lastBuildTime", System.currentTimeMillis());
     }
 
     public ArrayList<File> getSourceFiles(File path) {
@@ -167,29 +384,10 @@ public class JavacCompilationTask implements Task {
     }
 
     public ArrayList<File> getClasspath(JavaProject project) {
-        var classpath = new ArrayList<File>();
-        var clspath = prefs.getString("classpath", "");
-
-        if (!clspath.isEmpty()) {
-            for (var clas : clspath.split(":")) {
-                classpath.add(new File(clas));
-            }
-        }
-        classpath.add(new File(project.getBinDirPath(), "classes"));
-        var libs = new File(project.getLibDirPath()).listFiles();
-        if (libs != null) {
-            for (var lib : libs) {
-                classpath.add(lib);
-            }
-        }
-        return classpath;
+        return JavacService.getClasspath(prefs, project);
     }
 
     public ArrayList<File> getPlatformClasspath() {
-        var classpath = new ArrayList<File>();
-        classpath.add(new File(FileUtil.getClasspathDir(), "android.jar"));
-        classpath.add(new File(FileUtil.getClasspathDir(), "core-lambda-stubs.jar"));
-        classpath.add(new File(FileUtil.getClasspathDir(), "kotlin-stdlib-1.7.10.jar"));
-        return classpath;
+        return JavacService.getPlatformClasspath();
     }
 }
@@ -0,0 +1,170 @@
+package com.pranav.android.task.java
+
+import android.content.SharedPreferences
+
+import com.pranav.common.util.FileUtil
+import com.pranav.project.mode.JavaProject
+
+import com.sun.tools.javac.api.JavacTaskPool
+import com.sun.tools.javac.api.JavacTool
+
+import java.io.File
+import java.io.IOException
+import java.nio.charset.Charset
+import java.util.Locale
+
+import javax.tools.DiagnosticListener
+import javax.tools.JavaFileObject
+import javax.tools.StandardJavaFileManager
+import javax.tools.StandardLocation
+
+/*
+ * Long lived javac instance shared by the builds and the analyzer.
+ * The file manager keeps the platform and library archives open and indexed,
+ * and the task pool reuses the symbol tables of previous invocations.
+ */
+object JavacService {
+
+    private const val POOL_SIZE = 2
+
+    private val tool = JavacTool.create()
+    private var pool = JavacTaskPool(POOL_SIZE)
+    private var fileManager: StandardJavaFileManager? = null
+    private var fingerprint = ""
+    private var classpathFingerprint = ""
+
+    /*
+     * The classpath of a project, builds and the analyzer must both use it
+     * or they would keep replacing each other's symbol tables
+     */
+    @JvmStatic
+    fun getClasspath(prefs: SharedPreferences, project: JavaProject): ArrayList<File> {
+        val classpath = arrayListOf<File>()
+        val clspath = prefs.getString("classpath", "")!!
+
+        if (!clspath.isEmpty()) {
+            for (clas in clspath.split(":")) {
+                classpath.add(File(clas))
+            }
+        }
+        classpath.add(File(project.getBinDirPath(), "classes"))
+        File(project.getLibDirPath()).listFiles()?.let { classpath.addAll(it) }
+        return classpath
+    }
+
+    @JvmStatic
+    fun getPlatformClasspath(): ArrayList<File> {
+        val classpath = arrayListOf<File>()
+        classpath.add(File(FileUtil.getClasspathDir(), "android.jar"))
+        classpath.add(File(FileUtil.getClasspathDir(), "core-lambda-stubs.jar"))
+        classpath.add(File(FileUtil.getClasspathDir(), "kotlin-stdlib-1.7.10.jar"))
+        return classpath
+    }
+
+    /*
+     * Runs the worker with a javac task configured for the given locations.
+     * Only one task runs at a time as the file manager is shared.
+     */
+    @JvmStatic
+    @Synchronized
+    @Throws(IOException::class)
+    fun <T> withTask(
+            platformClasspath: List<File>,
+            classpath: List<File>,
+            sourcePath: List<File>,
+            classOutput: File?,
+            diagnostics: DiagnosticListener<in JavaFileObject>,
+            options: List<String>,
+            units: List<JavaFileObject>,
+            worker: JavacTaskPool.Worker<T>
+    ): T {
+        val manager = getFileManager(platformClasspath, classpath)
+        manager.setLocation(StandardLocation.SOURCE_PATH, sourcePath)
+        manager.setLocation(StandardLocation.CLASS_OUTPUT, classOutput?.let { listOf(it) })
+        return pool.getTask(null, manager, diagnostics, options, null, units, worker)
+    }
+
+    /*
+     * Same as withTask, but the class files are stored in the given map
+     * keyed by their binary name instead of being written to the disk
+     */
+    @JvmStatic
+    @Synchronized
+    @Throws(IOException::class)
+    fun <T> withMemoryTask(
+            platformClasspath: List<File>,
+            classpath: List<File>,
+            sourcePath: List<File>,
+            classes: MutableMap<String, ByteArray>,
+            diagnostics: DiagnosticListener<in JavaFileObject>,
+            options: List<String>,
+            units: List<JavaFileObject>,
+            worker: JavacTaskPool.Worker<T>
+    ): T {
+        val manager = getFileManager(platformClasspath, classpath)
+        manager.setLocation(StandardLocation.SOURCE_PATH, sourcePath)
+        manager.setLocation(StandardLocation.CLASS_OUTPUT, null)
+        val memory = MemoryFileManager(manager, classes)
+        return pool.getTask(null, memory, diagnostics, options, null, units, worker)
+    }
+
+    /*
+     * Must be called whenever class files on the classpath were rewritten,
+     * so that symbols read from the old class files are not reused
+     */
+    @JvmStatic
+    @Synchronized
+    fun classOutputChanged() {
+        pool = JavacTaskPool(POOL_SIZE)
+    }
+
+    @JvmStatic
+    @Synchronized
+    fun invalidate() {
+        try {
+            fileManager?.close()
+        } catch (ignored: IOException) {
+        }
+        fileManager = null
+        fingerprint = ""
+        classpathFingerprint = ""
+        pool = JavacTaskPool(POOL_SIZE)
+    }
+
+    private fun getFileManager(
+            platformClasspath: List<File>,
+            classpath: List<File>
+    ): StandardJavaFileManager {
+        // the opened platform archives are kept as long as they don't change
+        val current = getFingerprint(platformClasspath)
+        var manager = fileManager
+        if (manager == null || current != fingerprint) {
+            invalidate()
+            manager = tool.getStandardFileManager(null, Locale.getDefault(), Charset.defaultCharset())
+            manager.setLocation(StandardLocation.PLATFORM_CLASS_PATH, platformClasspath)
+            fileManager = manager
+            fingerprint = current
+        }
+        // a different classpath only needs other symbol tables
+        val currentClasspath = getFingerprint(classpath)
+        if (currentClasspath != classpathFingerprint) {
+            manager!!.setLocation(StandardLocation.CLASS_PATH, classpath)
+            classpathFingerprint = currentClasspath
+            pool = JavacTaskPool(POOL_SIZE)
+        }
+        return manager!!
+    }
+
+    private fun getFingerprint(files: List<File>): String {
+        val builder = StringBuilder()
+        for (file in files) {
+            builder.append(file.absolutePath)
+            if (file.isFile()) {
+                builder.append(':').append(file.length())
+                builder.append(':').append(file.lastModified())
+            }
+            builder.append(File.pathSeparatorChar)
+        }
+        return builder.toString()
+    }
+}
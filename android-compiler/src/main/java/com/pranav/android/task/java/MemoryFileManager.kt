@@ -0,0 +1,43 @@
+package com.pranav.android.task.java
+
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+import java.net.URI
+
+import javax.tools.FileObject
+import javax.tools.ForwardingJavaFileManager
+import javax.tools.JavaFileManager
+import javax.tools.JavaFileObject
+import javax.tools.SimpleJavaFileObject
+import javax.tools.StandardLocation
+
+/*
+ * Keeps the class files written by javac in memory instead of writing them
+ * to the class output directory
+ */
+class MemoryFileManager(
+        fileManager: JavaFileManager,
+        private val classes: MutableMap<String, ByteArray>
+) : ForwardingJavaFileManager<JavaFileManager>(fileManager) {
+
+    override fun getJavaFileForOutput(
+            location: JavaFileManager.Location,
+            className: String,
+            kind: JavaFileObject.Kind,
+            sibling: FileObject?
+    ): JavaFileObject {
+        if (location != StandardLocation.CLASS_OUTPUT || kind != JavaFileObject.Kind.CLASS) {
+            return super.getJavaFileForOutput(location, className, kind, sibling)
+        }
+        val uri = URI.create("mem:///" + className.replace('.', '/') + kind.extension)
+        return object : SimpleJavaFileObject(uri, kind) {
+            override fun openOutputStream(): OutputStream {
+                return object : ByteArrayOutputStream() {
+                    override fun close() {
+                        classes[className] = toByteArray()
+                    }
+                }
+            }
+        }
+    }
+}
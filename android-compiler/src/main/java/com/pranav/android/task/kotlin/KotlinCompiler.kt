@@ -4,12 +4,14 @@ import org.jetbrains.kotlin.cli.common.arguments.K2JVMCompilerArguments
 import org.jetbrains.kotlin.cli.common.messages.CompilerMessageSeverity
 import org.jetbrains.kotlin.cli.common.messages.CompilerMessageSourceLocation
 import org.jetbrains.kotlin.cli.common.messages.MessageCollector
-import org.jetbrains.kotlin.incremental.makeIncrementally
+import org.jetbrains.kotlin.config.KotlinCompilerVersion
 import java.io.File
 import java.util.stream.Collectors
 
 import com.pranav.common.util.FileUtil
 import com.pranav.android.interfaces.*
+import com.pranav.android.task.BuildMetrics
+import com.pranav.android.task.java.JavacService
 import com.pranav.project.mode.JavaProject
 import com.pranav.android.exception.CompilationFailedException
 
@@ -21,6 +23,7 @@ class KotlinCompiler() : Task {
         if (!sourceFiles.any {
             it.endsWith(".kt")
         }) {
+            KotlinService.getOutputsFile(project).delete()
             return;
         }
         val mKotlinHome  = File(project.getBinDirPath(), "kt_home").apply { mkdirs() }
@@ -47,12 +50,27 @@ class KotlinCompiler() : Task {
             override fun toString() = diagnostics
                 .joinToString(System.lineSeparator().repeat(2)) { it.toString() }
         }
-        val claspath = arrayListOf<File>()
-        val libs = File(project.getLibDirPath()).listFiles()
-        if (libs != null) {
-            for (lib in libs) {
-                claspath.add(lib)
-            }
+        val claspath = getClasspath(project)
+
+        val cacheDir = File(project.getBinDirPath(), "caches")
+        val stateFile = File(project.getCacheDirPath(), "kotlin.state")
+
+        BuildMetrics.count("sources", sourceFiles.size.toLong())
+        // java changes that kotlin can't see, like edited method bodies, need no compilation
+        val state = KotlinService.getState(sourceFiles.map { File(it) }, claspath)
+        // outputs deleted from bin/classes, e.g. by a clean, must be written again
+        val outputsExist = KotlinService.getOutputsFile(project).exists() &&
+                KotlinService.loadOutputs(project).all {
+                    File(mClassOutput, it.replace('.', File.separatorChar) + ".class").exists()
+                }
+        if (state == KotlinService.loadState(stateFile) && cacheDir.exists() && outputsExist) {
+            BuildMetrics.count("upToDate")
+            return
+        }
+        stateFile.delete()
+        if (!outputsExist) {
+            // the incremental caches would still consider the missing classes written
+            cacheDir.deleteRecursively()
         }
 
         val args = K2JVMCompilerArguments().apply {
@@ -61,16 +79,7 @@ class KotlinCompiler() : Task {
             includeRuntime = false
             noReflect = true
             noStdlib = true
-            classpath =
-                    FileUtil.getClasspathDir() +
-                    "android.jar" +
-                    File.pathSeparator +
-                    FileUtil.getClasspathDir() +
-                    "core-lambda-stubs.jar" +
-                    File.pathSeparator +
-                    FileUtil.getClasspathDir() +
-                    "kotlin-stdlib-1.7.10.jar" +
-                    claspath.joinToString(prefix = File.pathSeparator, separator = File.pathSeparator)
+            classpath = claspath.joinToString(separator = File.pathSeparator)
             kotlinHome = mKotlinHome.absolutePath
             destination = mClassOutput.absolutePath
             javaSourceRoots = sourceFiles.filter {
@@ -81,21 +90,41 @@ class KotlinCompiler() : Task {
             noJdk = true
         }
 
-        val cacheDir = File(project.getBinDirPath(), "caches")
-
-        makeIncrementally(
+        KotlinService.compile(
                 cacheDir,
                 listOf(File(project.getSrcDirPath())),
                 args,
                 collector
         )
+        JavacService.classOutputChanged()
+        // builds which are only run dex these next to the classes compiled into memory
+        KotlinService.saveOutputs(project, KotlinService.findOutputs(mClassOutput))
 
         if (collector.hasErrors()) {
             throw CompilationFailedException(collector.toString())
         }
+        KotlinService.saveState(stateFile, state)
         // File(mClassOutput, "META-INF").deleteRecursively()
     }
 
+    override fun getCacheKey(project: JavaProject): String {
+        return KotlinCompilerVersion.VERSION + "\n" + TaskGraph.describe(getClasspath(project))
+    }
+
+    private fun getClasspath(project: JavaProject): ArrayList<File> {
+        val claspath = arrayListOf<File>()
+        claspath.add(File(FileUtil.getClasspathDir(), "android.jar"))
+        claspath.add(File(FileUtil.getClasspathDir(), "core-lambda-stubs.jar"))
+        claspath.add(File(FileUtil.getClasspathDir(), "kotlin-stdlib-1.7.10.jar"))
+        val libs = File(project.getLibDirPath()).listFiles()
+        if (libs != null) {
+            for (lib in libs) {
+                claspath.add(lib)
+            }
+        }
+        return claspath
+    }
+
     fun getSourceFiles(path: File): ArrayList<String> {
         val sourceFiles = arrayListOf<String>()
         val files = path.listFiles()
@@ -0,0 +1,246 @@
+package com.pranav.android.task.kotlin
+
+import com.pranav.common.util.FileUtil
+import com.pranav.project.mode.JavaProject
+
+import com.sun.source.tree.BlockTree
+import com.sun.source.tree.ClassTree
+import com.sun.source.tree.CompilationUnitTree
+import com.sun.source.tree.ImportTree
+import com.sun.source.tree.LiteralTree
+import com.sun.source.tree.MethodTree
+import com.sun.source.tree.VariableTree
+import com.sun.source.util.JavacTask
+import com.sun.source.util.TreeScanner
+import com.sun.tools.javac.api.JavacTool
+
+import org.jetbrains.kotlin.cli.common.arguments.K2JVMCompilerArguments
+import org.jetbrains.kotlin.cli.common.messages.MessageCollector
+import org.jetbrains.kotlin.incremental.makeIncrementally
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.nio.charset.Charset
+import java.security.MessageDigest
+import java.util.Locale
+
+import javax.lang.model.element.Modifier
+import javax.tools.DiagnosticListener
+import javax.tools.JavaFileObject
+
+/*
+ * Long lived Kotlin compile service. The compiler stays loaded in the process
+ * between builds, and the state of the last successful build is kept so that
+ * builds where no Kotlin source and no declaration of a Java source changed
+ * don't run the compiler at all.
+ */
+object KotlinService {
+
+    private const val VERSION = 1
+    private const val METADATA = "Lkotlin/Metadata;"
+
+    private val tool = JavacTool.create()
+    private val fileManager by lazy {
+        tool.getStandardFileManager(null, Locale.getDefault(), Charset.defaultCharset())
+    }
+    // path of a java source -> hash of its contents and hash of its declarations
+    private val abiHashes = hashMapOf<String, Pair<String, String>>()
+
+    /*
+     * Returns a hash of every source the Kotlin compiler depends on. Kotlin
+     * sources are hashed as a whole, while only the declarations of Java
+     * sources are, as method bodies are never visible to Kotlin.
+     */
+    @JvmStatic
+    @Synchronized
+    fun getState(sources: List<File>, classpath: List<File>): Map<String, String> {
+        val state = hashMapOf<String, String>()
+        for (file in classpath) {
+            state[file.absolutePath] = file.length().toString() + ":" + file.lastModified()
+        }
+        for (file in sources) {
+            val hash = FileUtil.getHash(file)
+            if (!file.name.endsWith(".java")) {
+                state[file.absolutePath] = hash
+                continue
+            }
+            var abi = abiHashes[file.absolutePath]
+            if (abi == null || abi.first != hash) {
+                abi = Pair(hash, getAbiHash(file))
+                abiHashes[file.absolutePath] = abi
+            }
+            state[file.absolutePath] = abi.second
+        }
+        return state
+    }
+
+    @JvmStatic
+    @Synchronized
+    fun compile(
+            cacheDir: File,
+            sourceRoots: List<File>,
+            args: K2JVMCompilerArguments,
+            collector: MessageCollector
+    ) {
+        makeIncrementally(cacheDir, sourceRoots, args, collector)
+    }
+
+    @JvmStatic
+    fun loadState(file: File): Map<String, String> {
+        val state = hashMapOf<String, String>()
+        if (!file.exists()) {
+            return state
+        }
+        try {
+            DataInputStream(file.inputStream().buffered()).use { input ->
+                if (input.readInt() != VERSION) {
+                    return state
+                }
+                repeat(input.readInt()) {
+                    state[input.readUTF()] = input.readUTF()
+                }
+            }
+        } catch (e: IOException) {
+            // the compiler simply runs again
+            state.clear()
+        }
+        return state
+    }
+
+    @JvmStatic
+    @Throws(IOException::class)
+    fun saveState(file: File, state: Map<String, String>) {
+        file.parentFile?.mkdirs()
+        DataOutputStream(file.outputStream().buffered()).use { output ->
+            output.writeInt(VERSION)
+            output.writeInt(state.size)
+            for ((path, hash) in state) {
+                output.writeUTF(path)
+                output.writeUTF(hash)
+            }
+        }
+    }
+
+    /*
+     * Returns the binary names of the classes in the class output which were
+     * written by the Kotlin compiler, telling them apart from those of javac
+     * by the metadata annotation every Kotlin class carries
+     */
+    @JvmStatic
+    fun findOutputs(classesDir: File): Set<String> {
+        val outputs = hashSetOf<String>()
+        classesDir.walkTopDown().filter { it.isFile() && it.name.endsWith(".class") }.forEach {
+            if (String(it.readBytes(), Charsets.ISO_8859_1).contains(METADATA)) {
+                outputs.add(it.relativeTo(classesDir).path
+                        .removeSuffix(".class")
+                        .replace(File.separatorChar, '.'))
+            }
+        }
+        return outputs
+    }
+
+    @JvmStatic
+    fun getOutputsFile(project: JavaProject): File {
+        return File(project.getCacheDirPath(), "kotlin.outputs")
+    }
+
+    /*
+     * Returns the classes the last Kotlin build wrote into the class output
+     */
+    @JvmStatic
+    fun loadOutputs(project: JavaProject): Set<String> {
+        val outputs = hashSetOf<String>()
+        val file = getOutputsFile(project)
+        if (!file.exists()) {
+            return outputs
+        }
+        try {
+            DataInputStream(file.inputStream().buffered()).use { input ->
+                repeat(input.readInt()) {
+                    outputs.add(input.readUTF())
+                }
+            }
+        } catch (e: IOException) {
+            // treated like a build without kotlin sources
+            outputs.clear()
+        }
+        return outputs
+    }
+
+    @JvmStatic
+    @Throws(IOException::class)
+    fun saveOutputs(project: JavaProject, outputs: Set<String>) {
+        val file = getOutputsFile(project)
+        file.parentFile?.mkdirs()
+        DataOutputStream(file.outputStream().buffered()).use { output ->
+            output.writeInt(outputs.size)
+            for (name in outputs) {
+                output.writeUTF(name)
+            }
+        }
+    }
+
+    private fun getAbiHash(file: File): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val units = fileManager.getJavaFileObjects(file)
+        // only parsed, so errors are left for javac to report
+        val ignored = DiagnosticListener<JavaFileObject> {}
+        val task = tool.getTask(null, fileManager, ignored, listOf("-proc:none"), null, units) as JavacTask
+        for (unit in task.parse()) {
+            AbiScanner(digest).scan(unit, null)
+        }
+        return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    /*
+     * Feeds everything a Kotlin source can see of a Java source into the
+     * digest, skipping method bodies and initializers
+     */
+    private class AbiScanner(private val digest: MessageDigest) : TreeScanner<Void?, Void?>() {
+
+        override fun visitCompilationUnit(node: CompilationUnitTree, p: Void?): Void? {
+            update(node.packageName)
+            return super.visitCompilationUnit(node, p)
+        }
+
+        override fun visitImport(node: ImportTree, p: Void?): Void? {
+            update(node)
+            return null
+        }
+
+        override fun visitClass(node: ClassTree, p: Void?): Void? {
+            update(node.modifiers, node.kind, node.simpleName, node.typeParameters)
+            update(node.extendsClause, node.implementsClause)
+            scan(node.members, p)
+            return null
+        }
+
+        override fun visitMethod(node: MethodTree, p: Void?): Void? {
+            update(node.modifiers, node.typeParameters, node.returnType, node.name)
+            update(node.parameters, node.throws, node.defaultValue)
+            return null
+        }
+
+        override fun visitVariable(node: VariableTree, p: Void?): Void? {
+            update(node.modifiers, node.type, node.name)
+            // constants are inlined by the Kotlin compiler
+            val initializer = node.initializer
+            if (Modifier.FINAL in node.modifiers.flags || initializer is LiteralTree) {
+                update(initializer)
+            }
+            return null
+        }
+
+        // initializer blocks of classes
+        override fun visitBlock(node: BlockTree, p: Void?): Void? = null
+
+        private fun update(vararg parts: Any?) {
+            for (part in parts) {
+                digest.update(part.toString().toByteArray())
+                digest.update(0)
+            }
+        }
+    }
+}
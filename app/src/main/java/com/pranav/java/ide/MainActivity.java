@@ -33,13 +33,16 @@ import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.google.android.material.snackbar.Snackbar;
 
 import com.pranav.ProblemMarker;
+import com.pranav.android.code.decompiler.CfrDecompiler;
 import com.pranav.android.code.disassembler.*;
 import com.pranav.android.code.formatter.*;
-import com.pranav.common.Indexer;
+import com.pranav.android.task.dex.DexIndex;
+import com.pranav.common.MetadataStore;
 import com.pranav.common.util.CoroutineUtil;
 import com.pranav.common.util.FileUtil;
 import com.pranav.common.util.ZipUtil;
 import com.pranav.java.ide.compiler.CompileTask;
+import com.pranav.java.ide.editor.DocumentLoader;
 import com.pranav.java.ide.ui.TreeViewDrawer;
 import com.pranav.java.ide.ui.utils.UiUtilsKt;
 import com.pranav.project.mode.JavaProject;
@@ -47,22 +50,20 @@ import com.pranav.project.mode.JavaTemplate;
 
 import io.github.rosemoe.sora.langs.textmate.TextMateColorScheme;
 import io.github.rosemoe.sora.langs.textmate.TextMateLanguage;
+import io.github.rosemoe.sora.text.Content;
+import io.github.rosemoe.sora.text.UndoManager;
 import io.github.rosemoe.sora.widget.CodeEditor;
 
-import org.benf.cfr.reader.Main;
 import org.eclipse.tm4e.core.internal.theme.reader.ThemeReader;
 import org.eclipse.tm4e.core.theme.IRawTheme;
-import org.jf.baksmali.Baksmali;
-import org.jf.baksmali.BaksmaliOptions;
-import org.jf.dexlib2.DexFileFactory;
-import org.jf.dexlib2.Opcodes;
-import org.jf.dexlib2.iface.ClassDef;
-import org.json.JSONException;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
 
 public final class MainActivity extends AppCompatActivity {
 
@@ -80,7 +81,14 @@ public final class MainActivity extends AppCompatActivity {
     private String temp;
 
     public String currentWorkingFilePath;
-    public Indexer indexer;
+    public MetadataStore metadata;
+
+    /* Whether the current file was completely loaded, and the text and version
+     * which were last written back to it, read by builds from other threads */
+    private boolean fileLoaded;
+    private Content savedContent;
+    private long savedVersion;
+    private static final String CURRENT_FILE = "currentFile";
     public static String BUILD_STATUS = "BUILD_STATUS";
 
     @Override
@@ -118,16 +126,17 @@ public final class MainActivity extends AppCompatActivity {
         editor.setTextSize(12);
         editor.setPinLineNumber(true);
 
-        try {
-            indexer = new Indexer(getProject().getProjectName(), getProject().getCacheDirPath());
-            if (indexer.notHas("currentFile")) {
-                indexer.put("currentFile", getProject().getSrcDirPath() + "Main.kt");
-                indexer.flush();
-            }
-            currentWorkingFilePath = indexer.getString("currentFile");
-        } catch (Exception e) {
-            dialog("Exception", e.getMessage(), true);
+        metadata = MetadataStore.forProject(getProject().getProjectName(), getProject().getCacheDirPath());
+        if (!metadata.contains(CURRENT_FILE)) {
+            metadata.put(CURRENT_FILE, getProject().getSrcDirPath() + "Main.kt");
         }
+        currentWorkingFilePath = metadata.get(CURRENT_FILE);
+
+        /* Old undo history of large edits is kept in the project cache, what is
+         * left there was written by an editor which is gone */
+        var undoDir = new File(getProject().getCacheDirPath(), "undo");
+        FileUtil.deleteAllInDir(undoDir);
+        UndoManager.setSpillDirectory(undoDir);
         if (currentWorkingFilePath.endsWith(".kt")) {
             editor.setEditorLanguage(getTextMateLanguageFor("kotlin"));
         } else if (currentWorkingFilePath.endsWith(".java") || currentWorkingFilePath.endsWith(".jav")) {
@@ -136,40 +145,13 @@ public final class MainActivity extends AppCompatActivity {
 
         final var file = new File(currentWorkingFilePath);
         if (file.exists()) {
-            try {
-                editor.setText(FileUtil.readFile(file));
-            } catch (IOException e) {
-                dialog("Cannot read file", getString(e), true);
-            }
+            openFile(currentWorkingFilePath);
+        } else {
+            setFileLoaded(true);
+            editor.getText().addContentListener(new ProblemMarker(editor, currentWorkingFilePath, getProject()));
         }
 
-        if (!new File(FileUtil.getClasspathDir(), "android.jar").exists()) {
-            ZipUtil.unzipFromAssets(
-                    MainActivity.this, "android.jar.zip", FileUtil.getClasspathDir());
-        }
-        final var stdlib = new File(FileUtil.getClasspathDir(), "kotlin-stdlib-1.7.10.jar");
-        if (!stdlib.exists()) {
-            try {
-                FileUtil.writeFile(
-                    getAssets().open("kotlin-stdlib-1.7.10.jar"),
-                    stdlib.getAbsolutePath());
-            } catch (Exception e) {
-                showErr(getString(e));
-            }
-        }
-        if (!new File(FileUtil.getDataDir(), "compiler-modules").exists()) {
-            ZipUtil.unzipFromAssets(
-                    MainActivity.this, "compiler-modules.zip", FileUtil.getDataDir());
-        }
-        var output = new File(FileUtil.getClasspathDir() + "/core-lambda-stubs.jar");
-        if (!output.exists()) {
-            try {
-                FileUtil.writeFile(
-                        getAssets().open("core-lambda-stubs.jar"), output.getAbsolutePath());
-            } catch (Exception e) {
-                showErr(getString(e));
-            }
-        }
+        extractAssets();
 
         /* Create Loading Dialog */
         buildLoadingDialog();
@@ -178,11 +160,67 @@ public final class MainActivity extends AppCompatActivity {
         findViewById(R.id.btn_smali2java).setOnClickListener(v -> decompile());
         findViewById(R.id.btn_smali).setOnClickListener(v -> smali());
 
-        editor.getText().addContentListener(new ProblemMarker(editor, currentWorkingFilePath, getProject()));
         HorizontalScrollView scrollView = findViewById(R.id.scrollview);
         UiUtilsKt.addSystemWindowInsetToPadding(scrollView, false, false, false, true);
     }
 
+    /* Extracts what the compilers need from the assets, off the UI thread.
+     * An extraction cut short by the app being closed is resumed on the next launch */
+    private void extractAssets() {
+        final var stdlib = new File(FileUtil.getClasspathDir(), "kotlin-stdlib-1.7.10.jar");
+        final var lambdaStubs = new File(FileUtil.getClasspathDir(), "core-lambda-stubs.jar");
+        if (ZipUtil.isExtracted("android.jar.zip", FileUtil.getClasspathDir())
+                && ZipUtil.isExtracted("compiler-modules.zip", FileUtil.getDataDir())
+                && stdlib.exists()
+                && lambdaStubs.exists()) {
+            return;
+        }
+
+        final var progress =
+                new MaterialAlertDialogBuilder(MainActivity.this)
+                        .setTitle("Extracting files")
+                        .setMessage("Preparing the compilers...")
+                        .setCancelable(false)
+                        .create();
+        progress.show();
+        CoroutineUtil.inParallel(
+                () -> {
+                    try {
+                        ZipUtil.unzipFromAssets(
+                                MainActivity.this,
+                                "android.jar.zip",
+                                FileUtil.getClasspathDir(),
+                                null);
+                        if (!stdlib.exists()) {
+                            ZipUtil.copyFromAssets(
+                                    MainActivity.this, "kotlin-stdlib-1.7.10.jar", stdlib);
+                        }
+                        if (!lambdaStubs.exists()) {
+                            ZipUtil.copyFromAssets(
+                                    MainActivity.this, "core-lambda-stubs.jar", lambdaStubs);
+                        }
+                        ZipUtil.unzipFromAssets(
+                                MainActivity.this,
+                                "compiler-modules.zip",
+                                FileUtil.getDataDir(),
+                                (extracted, total) ->
+                                        runOnUiThread(
+                                                () ->
+                                                        progress.setMessage(
+                                                                "Extracting compiler modules "
+                                                                        + extracted * 100 / total
+                                                                        + "%")));
+                        runOnUiThread(progress::dismiss);
+                    } catch (Exception e) {
+                        runOnUiThread(
+                                () -> {
+                                    progress.dismiss();
+                                    showErr(getString(e));
+                                });
+                    }
+                });
+    }
+
     /* Build Loading Dialog - This dialog shows on code compilation */
     void buildLoadingDialog() {
         var builder = new MaterialAlertDialogBuilder(MainActivity.this);
@@ -209,13 +247,9 @@ public final class MainActivity extends AppCompatActivity {
     }
 
     /* Loads a file from a path to the editor */
-    public void loadFileToEditor(String path) throws IOException, JSONException {
-        if (!indexer.getString("currentFile").equals(path)) {
-            indexer.put("currentFile", path);
-            indexer.flush();
-        }
-        var newWorkingFile = new File(path);
-        editor.setText(FileUtil.readFile(newWorkingFile));
+    public void loadFileToEditor(String path) {
+        metadata.put(CURRENT_FILE, path);
+        openFile(path);
         TextMateLanguage language = null;
         if (path.endsWith(".kt")) {
             language = getTextMateLanguageFor("kotlin");
@@ -223,11 +257,46 @@ public final class MainActivity extends AppCompatActivity {
             language = getTextMateLanguageFor("java");
         }
         editor.setEditorLanguage(language);
-
-        editor.getText().addContentListener(new ProblemMarker(editor, path, getProject()));
         currentWorkingFilePath = path;
     }
 
+    /* Shows a file in the editor, it is read in the background. Problems are
+     * only looked for once the whole file is there */
+    private void openFile(String path) {
+        setFileLoaded(false);
+        DocumentLoader.load(editor, new File(path))
+                .whenComplete(
+                        (content, e) -> {
+                            if (e instanceof CancellationException) {
+                                // another file was opened meanwhile
+                                return;
+                            }
+                            if (e != null) {
+                                dialog("Cannot read file", getString(e), true);
+                                return;
+                            }
+                            setFileLoaded(true);
+                            content.addContentListener(new ProblemMarker(editor, path, getProject()));
+                        });
+    }
+
+    private synchronized void setFileLoaded(boolean loaded) {
+        fileLoaded = loaded;
+        savedContent = null;
+    }
+
+    /* Whether the given version of the text must be written to the current file.
+     * A file which is still being loaded, or failed to load, is never written as
+     * only a part of it is in the editor */
+    public synchronized boolean needsSave(Content text, long version) {
+        return fileLoaded && (text != savedContent || version != savedVersion);
+    }
+
+    public synchronized void markSaved(Content text, long version) {
+        savedContent = text;
+        savedVersion = version;
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main_activity_menu, menu);
@@ -249,7 +318,10 @@ public final class MainActivity extends AppCompatActivity {
                                 temp = formatter.format();
                             }
                         });
+                var unformatted = editor.getText();
                 editor.setText(temp);
+                // the unformatted text is dropped, so is its history
+                unformatted.getUndoManager().closeSpillFile(false);
                 break;
             case R.id.settings_menu_button:
                 startActivity(new Intent(MainActivity.this, SettingActivity.class));
@@ -261,6 +333,17 @@ public final class MainActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        /* the process may be killed once stopped, so the metadata is written now */
+        try {
+            metadata.flush();
+        } catch (IOException e) {
+            showErr(getString(e));
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -278,6 +361,11 @@ public final class MainActivity extends AppCompatActivity {
     }
 
     private void compile(boolean execute, boolean blockMainThread) {
+        compile(execute, blockMainThread, null);
+    }
+
+    /* onBuilt is run on the build thread once the build succeeded */
+    private void compile(boolean execute, boolean blockMainThread, Runnable onBuilt) {
         final int id = 1;
         final var intent = new Intent(MainActivity.this, MainActivity.class);
         intent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
@@ -319,6 +407,9 @@ public final class MainActivity extends AppCompatActivity {
                             public void onSuccess() {
                                 loadingDialog.dismiss();
                                 manager.cancel(id);
+                                if (onBuilt != null) {
+                                    onBuilt.run();
+                                }
                             }
 
                             @Override
@@ -369,157 +460,217 @@ public final class MainActivity extends AppCompatActivity {
     }
 
     public void smali() {
-        try {
-            final var classes = getClassesFromDex();
-            if (classes == null) return;
-            listDialog(
-                    "Select a class to extract source",
-                    classes,
-                    (d, pos) -> {
-                        final var claz = classes[pos];
-                        final var smaliFile =
-                                new File(
-                                        getProject().getBinDirPath(),
-                                        "smali" + "/" + claz.replace(".", "/") + ".smali");
-                        try {
-                            final var opcodes = Opcodes.forApi(32);
-                            final var options = new BaksmaliOptions();
-
-                            final var dexFile =
-                                    DexFileFactory.loadDexFile(
-                                            new File(getProject().getBinDirPath(), "classes.dex"), opcodes);
-                            options.apiLevel = 32;
-                            CoroutineUtil.execute(
-                                    () ->
-                                            Baksmali.disassembleDexFile(
-                                                    dexFile,
-                                                    new File(getProject().getBinDirPath(), "smali"),
-                                                    1,
-                                                    options));
-                        } catch (Exception e) {
-                            dialog("Unable to load dex file", getString(e), true);
-                            return;
-                        }
-
-                        var edi = new CodeEditor(MainActivity.this);
-                        edi.setTypefaceText(Typeface.MONOSPACE);
-                        edi.setColorScheme(getColorScheme());
-                        edi.setEditorLanguage(getTextMateLanguageFor("smali"));
-                        edi.setTextSize(12);
-
-                        try {
-                            edi.setText(FileUtil.readFile(smaliFile));
-                        } catch (IOException e) {
-                            dialog("Cannot read file", getString(e), true);
-                            return;
-                        }
+        withClassesFromDex(this::smali);
+    }
 
-                        var dialog =
-                                new AlertDialog.Builder(MainActivity.this).setView(edi).create();
-                        dialog.setCanceledOnTouchOutside(true);
-                        dialog.show();
-                    });
+    private void smali(String[] classes) {
+        try {
+            final var dexFile = new File(getProject().getBinDirPath(), "classes.dex");
+            final var cacheDir = new File(getProject().getBuildDirPath(), "smali");
+            new MaterialAlertDialogBuilder(MainActivity.this)
+                    .setTitle("Select a class to extract source")
+                    .setItems(
+                            classes,
+                            (d, pos) -> {
+                                final var claz = classes[pos];
+                                CoroutineUtil.inParallel(
+                                        () -> {
+                                            try {
+                                                /* hashing the dex file takes a while, so it is done here */
+                                                final var smali =
+                                                        new SmaliDisassembler(dexFile, cacheDir)
+                                                                .disassemble(claz);
+                                                runOnUiThread(() -> showSmali(smali));
+                                            } catch (Exception e) {
+                                                runOnUiThread(
+                                                        () ->
+                                                                dialog(
+                                                                        "Unable to load dex file",
+                                                                        getString(e),
+                                                                        true));
+                                            }
+                                        });
+                            })
+                    .setNeutralButton(
+                            "Export all",
+                            (d, which) -> {
+                                final var output = new File(getProject().getBinDirPath(), "smali");
+                                final View container = findViewById(R.id.container);
+                                CoroutineUtil.inParallel(
+                                        () -> {
+                                            try {
+                                                new SmaliDisassembler(dexFile, cacheDir)
+                                                        .exportAll(output);
+                                                runOnUiThread(
+                                                        () ->
+                                                                Snackbar.make(
+                                                                                container,
+                                                                                "Exported to " + output,
+                                                                                Snackbar.LENGTH_LONG)
+                                                                        .show());
+                                            } catch (Exception e) {
+                                                runOnUiThread(
+                                                        () ->
+                                                                dialog(
+                                                                        "Failed to export smali",
+                                                                        getString(e),
+                                                                        true));
+                                            }
+                                        });
+                            })
+                    .show();
         } catch (Throwable e) {
             dialog("Failed to extract smali source", getString(e), true);
         }
     }
 
+    private void showSmali(String smali) {
+        var edi = new CodeEditor(MainActivity.this);
+        edi.setTypefaceText(Typeface.MONOSPACE);
+        edi.setColorScheme(getColorScheme());
+        edi.setEditorLanguage(getTextMateLanguageFor("smali"));
+        edi.setTextSize(12);
+        edi.setText(smali);
+
+        var dialog = new AlertDialog.Builder(MainActivity.this).setView(edi).create();
+        dialog.setCanceledOnTouchOutside(true);
+        dialog.show();
+    }
+
     public void decompile() {
-        final var classes = getClassesFromDex();
-        if (classes == null) return;
+        withClassesFromDex(this::decompile);
+    }
+
+    private void decompile(String[] classes) {
         listDialog(
                 "Select a class to extract source",
                 classes,
                 (dialog, pos) -> {
-                    var claz = classes[pos].replace(".", "/");
-                    var args =
-                            new String[] {
-                                getProject().getBinDirPath()
-                                        + "classes"
-                                        + "/"
-                                        + claz
-                                        + // full class name
-                                        ".class",
-                                "--extraclasspath",
-                                FileUtil.getClasspathDir() + "android.jar" + File.pathSeparator + FileUtil.getClasspathDir() + "kotlin-stdlib-1.7.10.jar",
-                                "--outputdir",
-                                getProject().getBinDirPath() + "cfr/"
-                            };
-
-                    CoroutineUtil.execute(
-                            () -> {
-                                try {
-                                    Main.main(args);
-                                } catch (Exception e) {
-                                    dialog("Failed to decompile...", getString(e), true);
-                                }
-                            });
-
-                    var edi = new CodeEditor(MainActivity.this);
-                    edi.setTypefaceText(Typeface.MONOSPACE);
-                    edi.setColorScheme(getColorScheme());
-                    edi.setEditorLanguage(getTextMateLanguageFor("java"));
-                    edi.setTextSize(12);
-
-                    var decompiledFile = new File(getProject().getBinDirPath() + "cfr" + "/" + claz + ".java");
-
-                    try {
-                        edi.setText(FileUtil.readFile(decompiledFile));
-                    } catch (IOException e) {
-                        dialog("Cannot read file", getString(e), true);
+                    var claz = classes[pos];
+
+                    var classpath = new ArrayList<File>();
+                    classpath.add(new File(FileUtil.getClasspathDir(), "android.jar"));
+                    classpath.add(new File(FileUtil.getClasspathDir(), "kotlin-stdlib-1.7.10.jar"));
+                    var libs = new File(getProject().getLibDirPath()).listFiles();
+                    if (libs != null) {
+                        classpath.addAll(Arrays.asList(libs));
                     }
 
-                    var d = new AlertDialog.Builder(MainActivity.this).setView(edi).create();
-                    d.setCanceledOnTouchOutside(true);
-                    d.show();
+                    var progress =
+                            new MaterialAlertDialogBuilder(MainActivity.this)
+                                    .setTitle("Decompiling " + claz)
+                                    .setMessage("")
+                                    .create();
+                    progress.show();
+
+                    CfrDecompiler.decompile(
+                                    new File(getProject().getBinDirPath(), "classes"),
+                                    classpath,
+                                    claz,
+                                    message -> runOnUiThread(() -> progress.setMessage(message)))
+                            .whenComplete(
+                                    (source, error) ->
+                                            runOnUiThread(
+                                                    () -> {
+                                                        progress.dismiss();
+                                                        if (error != null) {
+                                                            dialog(
+                                                                    "Failed to decompile...",
+                                                                    getString(unwrap(error)),
+                                                                    true);
+                                                            return;
+                                                        }
+                                                        var edi = new CodeEditor(MainActivity.this);
+                                                        edi.setTypefaceText(Typeface.MONOSPACE);
+                                                        edi.setColorScheme(getColorScheme());
+                                                        edi.setEditorLanguage(
+                                                                getTextMateLanguageFor("java"));
+                                                        edi.setTextSize(12);
+                                                        edi.setText(source);
+
+                                                        var d =
+                                                                new AlertDialog.Builder(
+                                                                                MainActivity.this)
+                                                                        .setView(edi)
+                                                                        .create();
+                                                        d.setCanceledOnTouchOutside(true);
+                                                        d.show();
+                                                    }));
                 });
     }
 
     public void disassemble() {
-        final var classes = getClassesFromDex();
-        if (classes == null) return;
-        listDialog(
-                "Select a class to disassemble",
-                classes,
-                (dialog, pos) -> {
-                    var claz = classes[pos].replace(".", "/");
+        withClassesFromDex(this::disassemble);
+    }
 
-                    var edi = new CodeEditor(MainActivity.this);
-                    edi.setTypefaceText(Typeface.MONOSPACE);
-                    edi.setColorScheme(getColorScheme());
-                    edi.setEditorLanguage(getTextMateLanguageFor("java"));
-                    edi.setTextSize(12);
+    private void disassemble(String[] classes) {
+        final var classesDir = new File(getProject().getBinDirPath(), "classes");
+        final var useJavap = prefs.getString("disassembler", "Javap").equals("Javap");
+        new MaterialAlertDialogBuilder(MainActivity.this)
+                .setTitle("Select a class to disassemble")
+                .setItems(
+                        classes,
+                        (d, pos) ->
+                                ClassDisassembler.disassemble(classesDir, classes[pos], useJavap)
+                                        .whenComplete(
+                                                (disassembled, error) ->
+                                                        runOnUiThread(
+                                                                () -> {
+                                                                    if (error != null) {
+                                                                        dialog(
+                                                                                "Failed to disassemble",
+                                                                                getString(unwrap(error)),
+                                                                                true);
+                                                                        return;
+                                                                    }
+                                                                    showDisassembled(disassembled);
+                                                                })))
+                .setNeutralButton(
+                        "Export all",
+                        (d, which) -> {
+                            final var output = new File(getProject().getBinDirPath(), "disassembled");
+                            final View container = findViewById(R.id.container);
+                            ClassDisassembler.exportAll(classesDir, output, useJavap)
+                                    .whenComplete(
+                                            (count, error) ->
+                                                    runOnUiThread(
+                                                            () -> {
+                                                                if (error != null) {
+                                                                    dialog(
+                                                                            "Failed to export",
+                                                                            getString(unwrap(error)),
+                                                                            true);
+                                                                    return;
+                                                                }
+                                                                Snackbar.make(
+                                                                                container,
+                                                                                "Exported "
+                                                                                        + count
+                                                                                        + " classes to "
+                                                                                        + output,
+                                                                                Snackbar.LENGTH_LONG)
+                                                                        .show();
+                                                            }));
+                        })
+                .show();
+    }
 
-                    try {
-                        var disassembled = "";
-                        if (prefs.getString("disassembler", "Javap").equals("Javap")) {
-                            disassembled =
-                                    new JavapDisassembler(
-                                                    getProject().getBinDirPath()
-                                                            + "classes"
-                                                            + "/"
-                                                            + claz
-                                                            + ".class")
-                                            .disassemble();
-                        } else {
-                            disassembled =
-                                    new EclipseDisassembler(
-                                                    getProject().getBinDirPath()
-                                                            + "classes"
-                                                            +"/"
-                                                            + claz
-                                                            + ".class")
-                                            .disassemble();
-                        }
-                        edi.setText(disassembled);
+    private void showDisassembled(String disassembled) {
+        var edi = new CodeEditor(MainActivity.this);
+        edi.setTypefaceText(Typeface.MONOSPACE);
+        edi.setColorScheme(getColorScheme());
+        edi.setEditorLanguage(getTextMateLanguageFor("java"));
+        edi.setTextSize(12);
+        edi.setText(disassembled);
+
+        var d = new AlertDialog.Builder(MainActivity.this).setView(edi).create();
+        d.setCanceledOnTouchOutside(true);
+        d.show();
+    }
 
-                    } catch (Throwable e) {
-                        dialog("Failed to disassemble", getString(e), true);
-                    }
-                    var d = new AlertDialog.Builder(MainActivity.this).setView(edi).create();
-                    d.setCanceledOnTouchOutside(true);
-                    d.show();
-                });
+    /* failures of background work arrive wrapped by the future */
+    private Throwable unwrap(Throwable e) {
+        return e.getCause() != null ? e.getCause() : e;
     }
 
     public void listDialog(String title, String[] items, DialogInterface.OnClickListener listener) {
@@ -551,25 +702,42 @@ public final class MainActivity extends AppCompatActivity {
         dialog.create().show();
     }
 
-    /* Used to find all the compiled classes from the output dex file */
-    public String[] getClassesFromDex() {
-        try {
-            var dex = new File(getProject().getBinDirPath().concat("classes.dex"));
-            /* If the project doesn't seem to have been compiled yet, compile it */
-            if (!dex.exists()) {
-                compile(false, true);
-            }
-            var classes = new ArrayList<String>();
-            var dexfile = DexFileFactory.loadDexFile(dex.getAbsolutePath(), Opcodes.forApi(32));
-            for (var f : dexfile.getClasses().toArray(new ClassDef[0])) {
-                var name = f.getType().replace("/", "."); // convert class name to standard form
-                classes.add(name.substring(1, name.length() - 1));
-            }
-            return classes.toArray(new String[0]);
-        } catch (Exception e) {
-            dialog("Failed to get available classes in dex...", getString(e), true);
-            return null;
-        }
+    /* Reads the compiled classes from the index written next to the output dex file in the
+     * background and shows them with the picker. When there is no dex, e.g. after a run which
+     * kept its dex in memory, the project is built first */
+    public void withClassesFromDex(Consumer<String[]> picker) {
+        withClassesFromDex(picker, true);
+    }
+
+    private void withClassesFromDex(Consumer<String[]> picker, boolean build) {
+        CoroutineUtil.inParallel(
+                () -> {
+                    try {
+                        var index = DexIndex.read(getProject());
+                        if (index != null) {
+                            var classes = index.getClasses();
+                            runOnUiThread(() -> picker.accept(classes));
+                        } else if (build) {
+                            runOnUiThread(
+                                    () -> compile(false, false, () -> withClassesFromDex(picker, false)));
+                        } else {
+                            runOnUiThread(
+                                    () ->
+                                            Snackbar.make(
+                                                            (LinearLayout) findViewById(R.id.container),
+                                                            "The project has no compiled classes",
+                                                            Snackbar.LENGTH_LONG)
+                                                    .show());
+                        }
+                    } catch (Exception e) {
+                        runOnUiThread(
+                                () ->
+                                        dialog(
+                                                "Failed to get available classes in dex...",
+                                                getString(e),
+                                                true));
+                    }
+                });
     }
 
     private String getString(final Throwable e) {
@@ -46,6 +46,7 @@ public final class SettingActivity extends AppCompatActivity {
 
     private TextInputLayout classPath_til;
     private TextInputLayout programArguments_til;
+    private TextInputLayout executionTimeout_til;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -67,6 +68,7 @@ public final class SettingActivity extends AppCompatActivity {
 
         classPath_til = findViewById(R.id.til_classPath);
         programArguments_til = findViewById(R.id.til_programArguments);
+        executionTimeout_til = findViewById(R.id.til_executionTimeout);
 
         AutoCompleteTextView javaVersions_et = findViewById(R.id.et_javaVersions);
         AutoCompleteTextView javaCompilers_et = findViewById(R.id.et_javaCompilers);
@@ -81,6 +83,10 @@ public final class SettingActivity extends AppCompatActivity {
             programArguments_til.getEditText().setText(settings.getString("program_arguments", ""));
         }
 
+        if (!settings.getString("execution_timeout", "").equals("")) {
+            executionTimeout_til.getEditText().setText(settings.getString("execution_timeout", ""));
+        }
+
         javaVersions_et.setAdapter(
                 new ArrayAdapter<>(
                         this,
@@ -209,6 +215,7 @@ public final class SettingActivity extends AppCompatActivity {
     protected void onDestroy() {
         settings.edit().putString("classpath", classPath_til.getEditText().getText().toString()).apply();
         settings.edit().putString("program_arguments", programArguments_til.getEditText().getText().toString()).apply();
+        settings.edit().putString("execution_timeout", executionTimeout_til.getEditText().getText().toString()).apply();
         super.onDestroy();
     }
 }
@@ -1,31 +1,62 @@
 package com.pranav.java.ide.compiler;
 
 import android.content.Context;
+import android.graphics.Typeface;
+import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
+import android.view.View;
+import android.view.inputmethod.EditorInfo;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
 import com.pranav.android.exception.CompilationFailedException;
+import com.pranav.android.interfaces.Task;
+import com.pranav.android.interfaces.TaskGraph;
+import com.pranav.android.task.BuildMetrics;
+import com.pranav.android.task.InMemoryOutput;
 import com.pranav.android.task.JavaBuilder;
 import com.pranav.android.task.java.*;
 import com.pranav.android.task.kotlin.KotlinCompiler;
 import com.pranav.android.task.dex.D8Task;
+import com.pranav.android.task.dex.DexIndex;
+import com.pranav.android.task.dex.LibraryDexTask;
 import com.pranav.android.task.exec.ExecuteDexTask;
 import com.pranav.common.util.FileUtil;
 import com.pranav.java.ide.MainActivity;
+import com.pranav.java.ide.editor.DocumentLoader;
 import com.pranav.java.ide.R;
 import com.pranav.project.mode.JavaProject;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
 
 public class CompileTask extends Thread {
 
     private long d8Time = 0;
     private long ecjTime = 0;
+    /* Libraries are dexed while compiling, so this isn't part of the other two */
+    private long libraryDexTime = 0;
+
+    /* Chars of program output kept on screen, and how often they are refreshed */
+    private static final int MAX_SHOWN_OUTPUT = 32 * 1024;
+    private static final long OUTPUT_FRAME_MS = 33;
 
     private boolean showExecuteDialog = false;
 
+    private final BuildMetrics metrics = new BuildMetrics();
+
     private final MainActivity activity;
 
     private final CompilerListeners listener;
@@ -36,6 +67,7 @@ public class CompileTask extends Thread {
     private final String STAGE_JAVAC;
     private final String STAGE_ECJ;
     private final String STAGE_D8;
+    private final String STAGE_DEX_LIBRARIES;
     private final String STAGE_LOADING_DEX;
 
     public CompileTask(MainActivity context, boolean isExecuteMethod, CompilerListeners listener) {
@@ -49,6 +81,7 @@ public class CompileTask extends Thread {
         STAGE_JAVAC = context.getString(R.string.stage_javac);
         STAGE_ECJ = context.getString(R.string.stage_ecj);
         STAGE_D8 = context.getString(R.string.stage_d8);
+        STAGE_DEX_LIBRARIES = context.getString(R.string.stage_dex_libraries);
         STAGE_LOADING_DEX = context.getString(R.string.stage_loading_dex);
     }
 
@@ -61,118 +94,260 @@ public class CompileTask extends Thread {
         final var prefs = activity.getSharedPreferences("compiler_settings", Context.MODE_PRIVATE);
         try {
             listener.onCurrentBuildStageChanged(STAGE_CLEAN);
-            // a simple workaround to prevent calls to system.exit
-            final String code =
-                    activity.editor
-                            .getText()
-                            .toString()
-                            .replace("System.exit(", "System.err.println(\"Exit code \" + ");
-            final String currentPath = activity.currentWorkingFilePath;
-            if (code != FileUtil.readFile(new File(currentPath))) {
-                FileUtil.writeFile(currentPath, code);
+            final var text = activity.editor.getText();
+            final var snapshot = text.snapshot();
+            final var version = snapshot.getDocumentVersion();
+            // the file is only written when the text changed since it was last written
+            if (activity.needsSave(text, version)) {
+                // a simple workaround to prevent calls to system.exit
+                final String code =
+                        snapshot.toString()
+                                .replace("System.exit(", "System.err.println(\"Exit code \" + ");
+                final String currentPath = activity.currentWorkingFilePath;
+                FileUtil.writeFileAtomically(new File(currentPath), code, DocumentLoader.CHARSET);
+                activity.markSaved(text, version);
             }
         } catch (final IOException e) {
             listener.onFailed(e.getMessage());
         }
 
-        // Run kotlinc
-        var time = System.currentTimeMillis();
-        listener.onCurrentBuildStageChanged(STAGE_KOTLINC);
-        try {
-            new KotlinCompiler().doFullTask(activity.getProject());
-        } catch (CompilationFailedException e) {
-            listener.onFailed(e.getMessage());
-            return;
-        } catch (Throwable e) {
-            listener.onFailed(Log.getStackTraceString(e));
-            return;
+        final var project = activity.getProject();
+        final var kotlinTask = new KotlinCompiler();
+        // builds which are only run keep the javac and d8 outputs in memory
+        final var memory = showExecuteDialog ? new InMemoryOutput() : null;
+        final Task javaTask;
+        final String javaStage;
+        if (prefs.getString("compiler", "Javac").equals("Javac")) {
+            javaTask = new JavacCompilationTask(prefs, memory);
+            javaStage = STAGE_JAVAC;
+        } else {
+            javaTask = new ECJCompilationTask(prefs);
+            javaStage = STAGE_ECJ;
         }
-        // Compile Java Files
+        final var inMemory = memory != null && javaTask instanceof JavacCompilationTask;
+        final var d8Task = new D8Task(inMemory ? memory : null);
+        final var libraryDexTask = new LibraryDexTask();
+
+        final var stages = new HashMap<Task, String>();
+        stages.put(kotlinTask, STAGE_KOTLINC);
+        stages.put(javaTask, javaStage);
+        stages.put(d8Task, STAGE_D8);
+        stages.put(libraryDexTask, STAGE_DEX_LIBRARIES);
+
+        final var sources =
+                Arrays.asList(new File(project.getSrcDirPath()), new File(project.getLibDirPath()));
+        final var classOutput = Collections.singletonList(new File(project.getBinDirPath(), "classes"));
+
+        final var graph = new TaskGraph(project, metrics);
+        final var kotlin = graph.add(kotlinTask, sources, classOutput);
+        // tasks without outputs are never considered up to date
+        final var java =
+                graph.add(
+                        javaTask,
+                        sources,
+                        inMemory ? Collections.<File>emptyList() : classOutput,
+                        kotlin);
+        graph.add(
+                d8Task,
+                classOutput,
+                inMemory
+                        ? Collections.<File>emptyList()
+                        : Collections.singletonList(new File(project.getBinDirPath(), "classes.dex")),
+                java);
+        // libraries don't depend on the sources, so they are dexed while compiling
+        graph.add(
+                libraryDexTask,
+                Collections.singletonList(new File(project.getLibDirPath())),
+                Collections.singletonList(LibraryDexTask.getCacheDir(project)));
+
+        final var startTimes = new ConcurrentHashMap<Task, Long>();
+        final var buildSpan = metrics.start("Build");
         try {
-            if (prefs.getString("compiler", "Javac").equals("Javac")) {
-                listener.onCurrentBuildStageChanged(STAGE_JAVAC);
-                var javaTask = new JavacCompilationTask(prefs);
-                javaTask.doFullTask(activity.getProject());
-            } else {
-                listener.onCurrentBuildStageChanged(STAGE_ECJ);
-                var javaTask = new ECJCompilationTask(prefs);
-                javaTask.doFullTask(activity.getProject());
-            }
+            graph.execute(
+                    new TaskGraph.Listener() {
+                        @Override
+                        public void onTaskStarted(Task task) {
+                            startTimes.put(task, System.currentTimeMillis());
+                            listener.onCurrentBuildStageChanged(stages.get(task));
+                        }
+
+                        @Override
+                        public void onTaskFinished(Task task, boolean upToDate) {
+                            var start = startTimes.get(task);
+                            if (start == null) {
+                                return;
+                            }
+                            var elapsed = System.currentTimeMillis() - start;
+                            synchronized (CompileTask.this) {
+                                if (task == libraryDexTask) {
+                                    libraryDexTime += elapsed;
+                                } else if (task == d8Task) {
+                                    d8Time += elapsed;
+                                } else {
+                                    ecjTime += elapsed;
+                                }
+                            }
+                        }
+                    });
         } catch (CompilationFailedException e) {
             listener.onFailed(e.getMessage());
             return;
         } catch (Throwable e) {
             listener.onFailed(Log.getStackTraceString(e));
             return;
+        } finally {
+            buildSpan.close();
+            try {
+                metrics.writeTo(new File(project.getBuildDirPath(), "metrics"));
+            } catch (IOException e) {
+                Log.w("CompileTask", "Unable to write build metrics", e);
+            }
         }
 
-        ecjTime = System.currentTimeMillis() - time;
-        time = System.currentTimeMillis();
-
-        // run d8
-        listener.onCurrentBuildStageChanged(STAGE_D8);
-        try {
-            new D8Task().doFullTask(activity.getProject());
-        } catch (Exception e) {
-            listener.onFailed(e.getMessage());
-            return;
-        }
-        d8Time = System.currentTimeMillis() - time;
-
         listener.onSuccess();
 
         // Code that executes the final dex
+        if (!showExecuteDialog) {
+            return;
+        }
         try {
             listener.onCurrentBuildStageChanged(STAGE_LOADING_DEX);
-            final var classes = activity.getClassesFromDex();
-            if (classes == null) {
+            final var index = inMemory ? memory.getIndex() : DexIndex.read(project);
+            if (index == null) {
                 return;
             }
-            if (showExecuteDialog) {
-                activity.listDialog(
-                        "Select a class to execute",
-                        classes,
-                        (dialog, item) -> {
-                            var task = new ExecuteDexTask(prefs, classes[item]);
+            // only classes with a main method can be run
+            final var classes =
+                    index.getMainClasses().length > 0
+                            ? index.getMainClasses()
+                            : index.getClasses();
+            activity.listDialog(
+                    "Select a class to execute",
+                    classes,
+                    (dialog, item) -> {
+                        var task =
+                                new ExecuteDexTask(
+                                        prefs,
+                                        classes[item],
+                                        inMemory ? memory.getDexBuffers() : null);
+                        execute(task, classes[item]);
+                    });
+        } catch (Throwable e) {
+            listener.onFailed(e.getMessage());
+        }
+    }
+
+    /*
+     * Runs the program, showing its output as it is printed until it returns
+     * or is stopped
+     */
+    private void execute(ExecuteDexTask task, String className) {
+        final var console = task.getConsole();
+        final var output = new TextView(activity);
+        output.setTextIsSelectable(true);
+        output.setTypeface(Typeface.MONOSPACE);
+        final var scroll = new ScrollView(activity);
+        scroll.addView(output);
+        // every line entered is sent to the standard input of the program
+        final var input = new EditText(activity);
+        input.setHint("Input");
+        input.setSingleLine(true);
+        input.setImeOptions(EditorInfo.IME_ACTION_SEND);
+        input.setOnEditorActionListener(
+                (v, actionId, event) -> {
+                    task.getInput().send(v.getText().toString() + "\n");
+                    v.setText("");
+                    return true;
+                });
+        final var layout = new LinearLayout(activity);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.addView(
+                scroll,
+                new LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, 0, 1));
+        layout.addView(input);
+        final var running =
+                new MaterialAlertDialogBuilder(activity)
+                        .setTitle("Running " + className)
+                        .setView(layout)
+                        .setCancelable(false)
+                        .setNegativeButton("Stop", (d, which) -> task.cancel())
+                        .create();
+        running.show();
+
+        final var handler = new Handler(Looper.getMainLooper());
+        final var tail =
+                new Runnable() {
+                    private final StringBuilder shown = new StringBuilder();
+                    private long position = 0;
+
+                    @Override
+                    public void run() {
+                        var length = shown.length();
+                        position = console.read(position, shown);
+                        if (shown.length() != length) {
+                            // only the end of the output is worth rendering
+                            if (shown.length() > MAX_SHOWN_OUTPUT) {
+                                shown.delete(0, shown.length() - MAX_SHOWN_OUTPUT);
+                            }
+                            output.setText(shown);
+                            scroll.post(() -> scroll.fullScroll(View.FOCUS_DOWN));
+                        }
+                        handler.postDelayed(this, OUTPUT_FRAME_MS);
+                    }
+                };
+        handler.post(tail);
+
+        new Thread(
+                        () -> {
+                            String title;
+                            String message;
                             try {
                                 task.doFullTask(activity.getProject());
+                                title =
+                                        "Compiling took: "
+                                                + ecjTime
+                                                + "ms, D8 took: "
+                                                + d8Time
+                                                + "ms, dexing libraries took: "
+                                                + libraryDexTime
+                                                + "ms";
+                                message = task.getLogs();
+                            } catch (CancellationException | TimeoutException e) {
+                                title = "Stopped";
+                                message = e.getMessage() + "\n\nSystem logs:\n" + task.getLogs();
                             } catch (InvocationTargetException e) {
-                                activity.dialog(
-                                        "Failed...",
+                                title = "Failed...";
+                                message =
                                         "Runtime error: "
                                                 + e.getMessage()
                                                 + "\n\nSystem logs:\n"
-                                                + task.getLogs(),
-                                        true);
-                                return;
+                                                + task.getLogs();
                             } catch (Exception e) {
-                                activity.dialog(
-                                        "Failed...",
+                                title = "Failed...";
+                                message =
                                         "Couldn't execute the dex: "
                                                 + e.toString()
                                                 + "\n\nSystem logs:\n"
                                                 + task.getLogs()
                                                 + "\n"
-                                                + Log.getStackTraceString(e),
-                                        true);
-                                return;
+                                                + Log.getStackTraceString(e);
                             }
-                            var s = new StringBuilder();
-
-                            s.append("Compiling took: ");
-                            s.append(String.valueOf(ecjTime));
-                            s.append("ms, ");
-                            s.append("D8");
-                            s.append(" took: ");
-                            s.append(String.valueOf(d8Time));
-                            s.append("ms");
-
-                            activity.dialog(s.toString(), task.getLogs(), true);
-                        });
-            }
-        } catch (Throwable e) {
-            listener.onFailed(e.getMessage());
-        }
+                            final var dialogTitle = title;
+                            final var dialogMessage = message;
+                            handler.post(
+                                    () -> {
+                                        handler.removeCallbacks(tail);
+                                        running.dismiss();
+                                        activity.dialog(dialogTitle, dialogMessage, true);
+                                    });
+                        },
+                        "Execute " + className)
+                .start();
+    }
+
+    /* Returns the timings and counters recorded for every stage of this build */
+    public BuildMetrics getMetrics() {
+        return metrics;
     }
 
     public static interface CompilerListeners {
@@ -0,0 +1,171 @@
+package com.pranav.java.ide.editor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import io.github.rosemoe.sora.text.CharArrayWrapper;
+import io.github.rosemoe.sora.text.Content;
+import io.github.rosemoe.sora.text.ContentCreator;
+import io.github.rosemoe.sora.widget.CodeEditor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/*
+ * Loads files into the editor without blocking the UI thread. The file is
+ * decoded in chunks on a background thread, every chunk is appended to the
+ * content shown by the editor on the UI thread, so the start of the file is
+ * shown and scrollable while the rest is still being read. The next chunk is
+ * only handed over once the previous one was appended, so a slow UI thread
+ * doesn't get the whole file queued at once.
+ */
+public class DocumentLoader {
+
+    public static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final ExecutorService executor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "Document loader"));
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    // the loads still running, only accessed on the UI thread
+    private static final Map<CodeEditor, Loading> loadings = new WeakHashMap<>();
+
+    private static class Loading {
+        final Content content;
+        final boolean editable;
+
+        Loading(Content content, boolean editable) {
+            this.content = content;
+            this.editable = editable;
+        }
+    }
+
+    /*
+     * Shows the given file in the editor, must be called on the UI thread.
+     * Returns a future completed on the UI thread once the whole file is shown,
+     * it is cancelled if another text is set to the editor meanwhile. The
+     * editor is read-only and undo is off while loading, so the partially
+     * loaded text can't be edited and the loaded text can't be undone.
+     */
+    public static CompletableFuture<Content> load(CodeEditor editor, File file) {
+        var previous = loadings.get(editor);
+        var content = new Content();
+        loadings.put(
+                editor,
+                new Loading(content, previous != null ? previous.editable : editor.isEditable()));
+        var old = editor.getText();
+        editor.setText(content);
+        // the text of the previous file is dropped, so is its history
+        old.getUndoManager().closeSpillFile(false);
+        editor.setEditable(false);
+        content.setUndoEnabled(false);
+
+        var future = new CompletableFuture<Content>();
+        executor.execute(
+                () -> {
+                    // released once the chunk handed over was appended
+                    var appended = new Semaphore(1);
+                    try (var reader =
+                            new InputStreamReader(new FileInputStream(file), CHARSET)) {
+                        // one buffer is read into while the other one is appended
+                        var buffer = new char[CHUNK_SIZE];
+                        var other = new char[CHUNK_SIZE];
+                        int count, kept = 0;
+                        while (!future.isDone()
+                                && (count = reader.read(buffer, kept, CHUNK_SIZE - kept))
+                                        != -1) {
+                            count += kept;
+                            // a '\r' at the end may be followed by the '\n' of the same separator
+                            kept = buffer[count - 1] == '\r' ? 1 : 0;
+                            appended.acquireUninterruptibly();
+                            append(editor, content, future, appended, buffer, count - kept);
+                            var swap = buffer;
+                            buffer = other;
+                            other = swap;
+                            if (kept != 0) {
+                                buffer[0] = '\r';
+                            }
+                        }
+                        if (kept != 0) {
+                            appended.acquireUninterruptibly();
+                            append(editor, content, future, appended, buffer, kept);
+                        }
+                        handler.post(
+                                () -> {
+                                    if (isCurrent(editor, content, future)) {
+                                        finish(editor, content);
+                                        future.complete(content);
+                                    }
+                                });
+                    } catch (IOException e) {
+                        handler.post(
+                                () -> {
+                                    if (isCurrent(editor, content, future)) {
+                                        finish(editor, content);
+                                        future.completeExceptionally(e);
+                                    }
+                                });
+                    }
+                });
+        return future;
+    }
+
+    private static void append(
+            CodeEditor editor,
+            Content content,
+            CompletableFuture<Content> future,
+            Semaphore appended,
+            char[] chunk,
+            int count) {
+        handler.post(
+                () -> {
+                    try {
+                        if (isCurrent(editor, content, future)) {
+                            ContentCreator.appendText(content, new CharArrayWrapper(chunk, count));
+                        }
+                    } finally {
+                        appended.release();
+                    }
+                });
+    }
+
+    // called on the UI thread
+    private static boolean isCurrent(
+            CodeEditor editor, Content content, CompletableFuture<Content> future) {
+        if (future.isDone()) {
+            return false;
+        }
+        if (editor.getText() != content) {
+            future.cancel(false);
+            // unless another load took over, the text was replaced by someone else
+            var loading = loadings.get(editor);
+            if (loading != null && loading.content != editor.getText()) {
+                loadings.remove(editor);
+                editor.setEditable(loading.editable);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    // called on the UI thread once the content is fully loaded or failed to
+    private static void finish(CodeEditor editor, Content content) {
+        content.setUndoEnabled(editor.isUndoEnabled());
+        var loading = loadings.remove(editor);
+        if (loading != null) {
+            editor.setEditable(loading.editable);
+        }
+    }
+}
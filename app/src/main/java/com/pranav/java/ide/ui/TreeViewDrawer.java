@@ -29,11 +29,10 @@ import com.pranav.java.ide.MainActivity;
 import com.pranav.java.ide.R;
 import com.pranav.java.ide.ui.treeview.TreeNode;
 import com.pranav.java.ide.ui.treeview.TreeView;
-import com.pranav.java.ide.ui.treeview.TreeUtil;
+import com.pranav.java.ide.ui.treeview.FileTreeModel;
 import com.pranav.java.ide.ui.treeview.binder.TreeFileNodeViewBinder;
 import com.pranav.java.ide.ui.treeview.binder.TreeFileNodeViewFactory;
 import com.pranav.java.ide.ui.treeview.file.TreeFile;
-import com.pranav.java.ide.ui.treeview.model.TreeFolder;
 import com.pranav.java.ide.ui.utils.UiUtilsKt;
 import com.pranav.project.mode.JavaProject;
 import com.pranav.project.mode.JavaTemplate;
@@ -48,6 +47,7 @@ import java.util.List;
 public class TreeViewDrawer extends Fragment {
 
     private TreeView<TreeFile> treeView;
+    private FileTreeModel fileTree;
 
     private AlertDialog createNewFileDialog;
     private AlertDialog createNewDirectoryDialog;
@@ -82,17 +82,17 @@ public class TreeViewDrawer extends Fragment {
                 new ViewGroup.LayoutParams(
                         ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.MATCH_PARENT));
 
-        TreeNode<TreeFile> currentNode = treeView.getRoot();
-        if(currentNode != null) {
-            partialRefresh();
-        } else {
-            TreeNode<TreeFile> node = TreeNode.root(TreeUtil.getNodes(new File(activity.getProject().getProjectDirPath())));
-            treeView.refreshTreeView(node);
-        }
+        /* Directories are listed when expanded and then follow the file system on their own */
+        fileTree = new FileTreeModel(() -> treeView.refreshTreeView());
+        treeView.refreshTreeView(
+                TreeNode.root(
+                        Collections.singletonList(
+                                fileTree.createRoot(
+                                        new File(activity.getProject().getProjectDirPath())))));
 
         SwipeRefreshLayout refreshLayout = view.findViewById(R.id.refreshLayout);
         refreshLayout.setOnRefreshListener(() -> {
-            partialRefresh();
+            fileTree.refresh();
             refreshLayout.setRefreshing(false);
         });
 
@@ -104,7 +104,7 @@ public class TreeViewDrawer extends Fragment {
                             public void onNodeToggled(
                                     @Nullable TreeNode<TreeFile> treeNode, boolean expanded) {
                                 if(treeNode.isLeaf()) {
-                                    if(treeNode.getValue().getFile().isFile()) {
+                                    if(!treeNode.getValue().isDirectory()) {
                                         try {
                                             activity.loadFileToEditor(
                                                 treeNode.getValue().getFile().getPath());
@@ -130,17 +130,9 @@ public class TreeViewDrawer extends Fragment {
     }
 
     @Override
-    public void onResume() {
-        super.onResume();
-        partialRefresh();
-    }
-
-    private void partialRefresh() {
-        if(!treeView.getAllNodes().isEmpty()) {
-            TreeNode<TreeFile> node = treeView.getAllNodes().get(0);
-            TreeUtil.updateNode(node);
-            treeView.refreshTreeView();
-        }
+    public void onDestroyView() {
+        super.onDestroyView();
+        fileTree.close();
     }
 
     private void showPopup(View v, TreeNode<TreeFile> node) {
@@ -154,7 +146,7 @@ public class TreeViewDrawer extends Fragment {
             popup.getMenu().getItem(2).setVisible(false);
         }
 
-        if (node.getContent().getFile().isFile()) {
+        if (!node.getContent().isDirectory()) {
             /* We cannot create a new class or directory inside a file so we should disable these options */
             popup.getMenu().getItem(0).setVisible(false);
             popup.getMenu().getItem(1).setVisible(false);
@@ -232,7 +224,7 @@ public class TreeViewDrawer extends Fragment {
                                         Paths.get(
                                                 node.getContent().getFile().getPath());
                                 Files.move(path, path.resolveSibling(fileNameString));
-                                partialRefresh();
+                                fileTree.refresh(node.getParent());
 
                                 renameFileDialog.dismiss();
                             } catch (Exception e) {
@@ -258,27 +250,13 @@ public class TreeViewDrawer extends Fragment {
 
                         if (!fileNameString.isEmpty()) {
                             try {
-                                var filePth =
-                                        new File(
-                                                node.getContent().getFile().getPath()
-                                                        + "/"
-                                                        + fileNameString
-                                                        + ".java");
-
                                 FileUtil.writeFileFromString(
                                         node.getContent().getFile().getPath() + 
                                         "/" + 
                                         fileNameString +
                                         ".java", JavaTemplate.getClassTemplate(node.getContent().getFile().getName(), fileNameString, false));
 
-                                var newDir =
-                                        new TreeNode<TreeFile>(
-                                                new TreeFile(filePth),
-                                                node.getLevel() + 1); // Get Level of parent so it will have
-                                // correct margin and disable some
-                                // popup functions if needed
-                                node.addChild(newDir);
-                                treeView.refreshTreeView();
+                                fileTree.refresh(node);
                                 fileName.setText("");
                                 createNewFileDialog.dismiss();
                             } catch (Exception e) {
@@ -304,27 +282,13 @@ public class TreeViewDrawer extends Fragment {
 
                         if (!fileNameString.isEmpty()) {
                             try {
-                                var filePth =
-                                        new File(
-                                                node.getContent().getFile().getPath()
-                                                        + "/"
-                                                        + fileNameString
-                                                        + ".kt");
-
                                 FileUtil.writeFileFromString(
                                         node.getContent().getFile().getPath() + 
                                         "/" + 
                                         fileNameString +
                                         ".kt", JavaTemplate.getKotlinClassTemplate(node.getContent().getFile().getName(), fileNameString, false));
 
-                                var newDir =
-                                        new TreeNode<TreeFile>(
-                                                new TreeFile(filePth),
-                                                node.getLevel() + 1); // Get Level of parent so it will have
-                                // correct margin and disable some
-                                // popup functions if needed
-                                node.addChild(newDir);
-                                treeView.refreshTreeView();
+                                fileTree.refresh(node);
                                 fileName.setText("");
                                 createNewFileDialog.dismiss();
                             } catch (Exception e) {
@@ -353,12 +317,7 @@ public class TreeViewDrawer extends Fragment {
                                     node.getContent().getFile().getPath() + "/" + fileNameString;
 
                             FileUtil.createDirectory(filePath);
-                            var dirPth = new File(filePath);
-                            var newDir =
-                                    new TreeNode<TreeFile>(
-                                            new TreeFolder(dirPth), node.getLevel() + 1);
-                            node.addChild(newDir);
-                            treeView.refreshTreeView();
+                            fileTree.refresh(node);
                             fileName.setText("");
                             createNewDirectoryDialog.dismiss();
                         } else {
@@ -387,8 +346,7 @@ public class TreeViewDrawer extends Fragment {
             confirmBttn.setOnClickListener(
                     v -> {
                         FileUtil.deleteFile(node.getContent().getFile().getPath());
-                        node.getParent().removeChild(node);
-                        treeView.refreshTreeView();
+                        fileTree.refresh(node.getParent());
                         confirmDeleteDialog.dismiss();
                     });
 
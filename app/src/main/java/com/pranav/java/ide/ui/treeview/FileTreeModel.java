@@ -0,0 +1,184 @@
+package com.pranav.java.ide.ui.treeview;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.pranav.java.ide.ui.treeview.file.TreeFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tree of the files of a project. The children of a directory are only listed when it is first
+ * expanded, and every directory listed so far is watched. Changes made to a directory are applied
+ * to the nodes of that directory alone, so the rest of the tree, and whether its nodes are
+ * expanded, is left untouched.
+ */
+public class FileTreeModel {
+
+    public interface OnChangedListener {
+        void onChanged();
+    }
+
+    private static final int EVENTS =
+            FileObserver.CREATE
+                    | FileObserver.DELETE
+                    | FileObserver.MOVED_FROM
+                    | FileObserver.MOVED_TO;
+
+    /* Events arriving within this delay are applied together */
+    private static final long EVENT_DELAY = 100;
+
+    private static final Comparator<TreeNode<TreeFile>> NODE_ORDER =
+            (node1, node2) -> TreeUtil.FILE_FIRST_ORDER.compare(node1.getValue(), node2.getValue());
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final OnChangedListener listener;
+
+    /* Directories whose children were listed, by path. Only used on the main thread */
+    private final Map<String, TreeNode<TreeFile>> directories = new HashMap<>();
+    private final Map<String, FileObserver> observers = new HashMap<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    public FileTreeModel(OnChangedListener listener) {
+        this.listener = listener;
+    }
+
+    /** Creates the expanded node of the root directory, listing only its own children */
+    public TreeNode<TreeFile> createRoot(File directory) {
+        var root = createNode(directory, 0);
+        root.setExpanded(true);
+        root.loadChildren();
+        return root;
+    }
+
+    /** Applies the changes made to every directory listed so far */
+    public void refresh() {
+        for (var node : new ArrayList<>(directories.values())) {
+            // skips directories removed by refreshing their parent
+            if (directories.get(node.getValue().getFile().getPath()) == node) {
+                refresh(node);
+            }
+        }
+    }
+
+    /**
+     * Applies the changes made to a directory to its children. Only the names of the files are
+     * compared, the files which were added are the only ones read from the file system.
+     */
+    public void refresh(TreeNode<TreeFile> node) {
+        if (node == null || !node.getValue().isDirectory() || !node.isChildrenLoaded()) {
+            return;
+        }
+        var directory = node.getValue().getFile();
+        var names = directory.list();
+        var present = new HashSet<String>(names == null ? Collections.emptyList() : Arrays.asList(names));
+
+        var changed = false;
+        var existing = new HashSet<String>();
+        for (var child : new ArrayList<>(node.getChildren())) {
+            var name = child.getValue().getFile().getName();
+            if (present.contains(name)) {
+                existing.add(name);
+            } else {
+                node.removeChild(child);
+                forget(child);
+                changed = true;
+            }
+        }
+        for (var name : present) {
+            if (existing.contains(name)) {
+                continue;
+            }
+            var child = createNode(new File(directory, name), node.getLevel() + 1);
+            var position = Collections.binarySearch(node.getChildren(), child, NODE_ORDER);
+            node.insertChild(position < 0 ? -(position + 1) : position, child);
+            changed = true;
+        }
+        if (changed) {
+            listener.onChanged();
+        }
+    }
+
+    /** Stops watching the file system */
+    public void close() {
+        for (var observer : observers.values()) {
+            observer.stopWatching();
+        }
+        observers.clear();
+        directories.clear();
+        handler.removeCallbacksAndMessages(null);
+    }
+
+    private TreeNode<TreeFile> createNode(File file, int level) {
+        var node = new TreeNode<TreeFile>(TreeFile.fromFile(file), level);
+        if (node.getValue().isDirectory()) {
+            node.setChildrenLoader(this::loadChildren);
+        }
+        return node;
+    }
+
+    private List<TreeNode<TreeFile>> loadChildren(TreeNode<TreeFile> node) {
+        var directory = node.getValue().getFile();
+        var children = new ArrayList<TreeNode<TreeFile>>();
+        var files = directory.listFiles();
+        if (files != null) {
+            for (var file : files) {
+                children.add(createNode(file, node.getLevel() + 1));
+            }
+        }
+        children.sort(NODE_ORDER);
+        watch(directory.getPath(), node);
+        return children;
+    }
+
+    @SuppressWarnings("deprecation")
+    private void watch(String path, TreeNode<TreeFile> node) {
+        directories.put(path, node);
+        if (observers.containsKey(path)) {
+            return;
+        }
+        var observer =
+                new FileObserver(path, EVENTS) {
+                    @Override
+                    public void onEvent(int event, String name) {
+                        // a build writing many files is applied at once
+                        if (pending.add(path)) {
+                            handler.postDelayed(
+                                    () -> {
+                                        pending.remove(path);
+                                        refresh(directories.get(path));
+                                    },
+                                    EVENT_DELAY);
+                        }
+                    }
+                };
+        observer.startWatching();
+        observers.put(path, observer);
+    }
+
+    private void forget(TreeNode<TreeFile> node) {
+        if (!node.getValue().isDirectory() || !node.isChildrenLoaded()) {
+            return;
+        }
+        var path = node.getValue().getFile().getPath();
+        directories.remove(path);
+        var observer = observers.remove(path);
+        if (observer != null) {
+            observer.stopWatching();
+        }
+        for (var child : node.getChildren()) {
+            forget(child);
+        }
+    }
+}
@@ -21,6 +21,12 @@ import java.util.List;
 
 /** Created by xinyuanzhong on 2017/4/20. */
 public class TreeNode<D> {
+
+    /** Lists the children of a node whose children are only loaded when it is first expanded */
+    public interface ChildrenLoader<D> {
+        List<TreeNode<D>> loadChildren(TreeNode<D> node);
+    }
+
     private int level;
 
     private D value;
@@ -37,6 +43,10 @@ public class TreeNode<D> {
 
     private boolean itemClickEnable = true;
 
+    private ChildrenLoader<D> childrenLoader;
+
+    private boolean childrenLoaded = true;
+
     public TreeNode(D value, int level) {
         this.value = value;
         this.children = new ArrayList<>();
@@ -62,6 +72,18 @@ public class TreeNode<D> {
         treeNode.setParent(this);
     }
 
+    /** Inserts a child at the given position, keeping the indices of the children in order */
+    public void insertChild(int position, TreeNode<D> treeNode) {
+        if (treeNode == null) {
+            return;
+        }
+        children.add(position, treeNode);
+        treeNode.setParent(this);
+        for (int i = position; i < children.size(); i++) {
+            children.get(i).setIndex(i + 1);
+        }
+    }
+
     public void removeChild(TreeNode<D> treeNode) {
         if (treeNode == null || getChildren().size() < 1) {
             return;
@@ -70,7 +92,26 @@ public class TreeNode<D> {
     }
 
     public boolean isLeaf() {
-        return children.size() == 0;
+        // a node whose children weren't loaded yet may have some
+        return childrenLoaded && children.size() == 0;
+    }
+
+    public void setChildrenLoader(ChildrenLoader<D> childrenLoader) {
+        this.childrenLoader = childrenLoader;
+        this.childrenLoaded = childrenLoader == null;
+    }
+
+    public boolean isChildrenLoaded() {
+        return childrenLoaded;
+    }
+
+    /** Loads the children of a lazily loaded node, does nothing once they are loaded */
+    public void loadChildren() {
+        if (childrenLoaded) {
+            return;
+        }
+        childrenLoaded = true;
+        setChildren(childrenLoader.loadChildren(this));
     }
 
     public boolean isLastChild() {
@@ -37,6 +37,12 @@ open class TreeFile {
 
     fun getFile() = mFile
 
+    /*
+     * Whether the file was a directory when the node was created, so the tree
+     * never has to stat it again
+     */
+    open fun isDirectory() = false
+
     open fun getIcon(context: Context) : Drawable? {
         return AppCompatResources.getDrawable(context, R.drawable.ic_file)
     }
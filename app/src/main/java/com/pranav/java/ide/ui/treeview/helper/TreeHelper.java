@@ -30,6 +30,7 @@ public class TreeHelper {
         }
 
         treeNode.setExpanded(true);
+        treeNode.loadChildren();
 
         if (!treeNode.hasChild()) {
             return expandChildren;
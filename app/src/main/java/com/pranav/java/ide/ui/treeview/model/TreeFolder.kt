@@ -12,6 +12,8 @@ import java.io.File
 
 class TreeFolder(file: File) : TreeFile(file) {
 
+    override fun isDirectory() = true
+
     override fun getIcon(context: Context): Drawable? {
         return AppCompatResources.getDrawable(context, R.drawable.ic_folder)
     }
@@ -0,0 +1,67 @@
+package com.pranav.benchmarks;
+
+import com.pranav.android.task.java.ECJCompilationTask;
+import com.pranav.android.task.java.JavacCompilationTask;
+import com.pranav.android.task.kotlin.KotlinCompiler;
+import com.pranav.project.mode.JavaProject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Full builds of synthetic projects with every compiler.
+ * Run with ./gradlew :benchmarks:jmh -PandroidJar=<path to android.jar>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+public class CompilerBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int classes;
+
+    private final StubPreferences prefs = new StubPreferences().put("version", "8");
+
+    private JavaProject javaProject;
+    private JavaProject kotlinProject;
+
+    @Setup(Level.Trial)
+    public void createProjects() throws Exception {
+        // the classes of the jdk.compiler module would shadow nb-javac
+        if (Class.forName("com.sun.tools.javac.api.JavacTaskPool").getModule().isNamed()) {
+            throw new IllegalStateException("The javac of the JDK is used instead of nb-javac");
+        }
+        javaProject = SyntheticProject.create("java-" + classes, classes, false);
+        kotlinProject = SyntheticProject.create("kotlin-" + classes, classes, true);
+    }
+
+    @Setup(Level.Invocation)
+    public void clean() {
+        SyntheticProject.clean(javaProject);
+        SyntheticProject.clean(kotlinProject);
+    }
+
+    @Benchmark
+    public void javac() throws Exception {
+        new JavacCompilationTask(prefs).doFullTask(javaProject);
+    }
+
+    @Benchmark
+    public void ecj() throws Exception {
+        new ECJCompilationTask(prefs).doFullTask(javaProject);
+    }
+
+    @Benchmark
+    public void kotlinc() throws Exception {
+        new KotlinCompiler().doFullTask(kotlinProject);
+    }
+}
@@ -0,0 +1,51 @@
+package com.pranav.benchmarks;
+
+import com.pranav.android.task.dex.D8Task;
+import com.pranav.android.task.java.JavacCompilationTask;
+import com.pranav.common.util.FileUtil;
+import com.pranav.project.mode.JavaProject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Dexing all class files of synthetic projects from scratch.
+ * Run with ./gradlew :benchmarks:jmh -PandroidJar=<path to android.jar>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+public class DexBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int classes;
+
+    private JavaProject project;
+
+    @Setup(Level.Trial)
+    public void compile() throws Exception {
+        project = SyntheticProject.create("dex-" + classes, classes, false);
+        new JavacCompilationTask(new StubPreferences().put("version", "8")).doFullTask(project);
+    }
+
+    @Setup(Level.Invocation)
+    public void clean() {
+        FileUtil.deleteAllInDir(project.getBuildDirPath());
+        new File(project.getBinDirPath(), "classes.dex").delete();
+    }
+
+    @Benchmark
+    public void d8() throws Exception {
+        new D8Task().doFullTask(project);
+    }
+}
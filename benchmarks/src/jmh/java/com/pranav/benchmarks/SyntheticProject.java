@@ -0,0 +1,128 @@
+package com.pranav.benchmarks;
+
+import com.pranav.common.util.FileUtil;
+import com.pranav.project.mode.JavaProject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/*
+ * Generates projects of a given number of classes. Every class depends on the
+ * previous one, so incremental compilers have a dependency chain to follow.
+ */
+public final class SyntheticProject {
+
+    static {
+        try {
+            var dataDir = Files.createTempDirectory("cosmic-ide-benchmarks").toFile();
+            FileUtil.setDataDirectory(dataDir.getAbsolutePath());
+            var classpath = new File(FileUtil.getClasspathDir());
+            classpath.mkdirs();
+
+            var androidJar = new File(System.getProperty("benchmark.androidJar", ""));
+            if (!androidJar.isFile()) {
+                throw new IllegalStateException(
+                        "android.jar not found, pass it with -PandroidJar=<path>");
+            }
+            copy(androidJar, new File(classpath, "android.jar"));
+            var assets = new File(System.getProperty("benchmark.assets", ""));
+            copy(new File(assets, "core-lambda-stubs.jar"), new File(classpath, "core-lambda-stubs.jar"));
+            copy(
+                    new File(assets, "kotlin-stdlib-1.7.10.jar"),
+                    new File(classpath, "kotlin-stdlib-1.7.10.jar"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private SyntheticProject() {}
+
+    public static JavaProject create(String name, int classes, boolean kotlin)
+            throws IOException {
+        var root = new File(FileUtil.getProjectsDir(), name);
+        if (root.exists()) {
+            FileUtil.deleteFile(root.getAbsolutePath());
+        }
+        var project = new JavaProject(root);
+        for (var dir :
+                new String[] {
+                    project.getSrcDirPath(),
+                    project.getBinDirPath(),
+                    project.getLibDirPath(),
+                    project.getBuildDirPath(),
+                    project.getCacheDirPath()
+                }) {
+            new File(dir).mkdirs();
+        }
+        for (int i = 0; i < classes; i++) {
+            if (kotlin) {
+                FileUtil.writeFile(
+                        project.getSrcDirPath() + "bench/K" + i + ".kt", getKotlinClass(i));
+            } else {
+                FileUtil.writeFile(
+                        project.getSrcDirPath() + "bench/C" + i + ".java", getJavaClass(i));
+            }
+        }
+        return project;
+    }
+
+    /* Removes everything produced by a previous build */
+    public static void clean(JavaProject project) {
+        FileUtil.deleteAllInDir(project.getBinDirPath());
+        FileUtil.deleteAllInDir(project.getBuildDirPath());
+        FileUtil.deleteAllInDir(project.getCacheDirPath());
+    }
+
+    private static String getJavaClass(int i) {
+        var code = new StringBuilder();
+        code.append("package bench;\n\n");
+        code.append("import java.util.function.IntUnaryOperator;\n\n");
+        code.append("public class C").append(i).append(" {\n");
+        if (i > 0) {
+            code.append("    private final C").append(i - 1);
+            code.append(" previous = new C").append(i - 1).append("();\n");
+        }
+        code.append("    public int value(int x) {\n");
+        code.append("        IntUnaryOperator op = v -> v * ").append(i).append(";\n");
+        code.append("        int result = op.applyAsInt(x);\n");
+        code.append("        for (int j = 0; j < 3; j++) {\n");
+        code.append("            result += j;\n");
+        code.append("        }\n");
+        if (i > 0) {
+            code.append("        result += previous.value(x);\n");
+        }
+        code.append("        return result;\n");
+        code.append("    }\n");
+        code.append("}\n");
+        return code.toString();
+    }
+
+    private static String getKotlinClass(int i) {
+        var code = new StringBuilder();
+        code.append("package bench\n\n");
+        code.append("class K").append(i).append(" {\n");
+        if (i > 0) {
+            code.append("    private val previous = K").append(i - 1).append("()\n");
+        }
+        code.append("    fun value(x: Int): Int {\n");
+        code.append("        val op = { v: Int -> v * ").append(i).append(" }\n");
+        code.append("        var result = op(x)\n");
+        code.append("        for (j in 0 until 3) {\n");
+        code.append("            result += j\n");
+        code.append("        }\n");
+        if (i > 0) {
+            code.append("        result += previous.value(x)\n");
+        }
+        code.append("        return result\n");
+        code.append("    }\n");
+        code.append("}\n");
+        return code.toString();
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,34 @@
+package android.os;
+
+import java.lang.management.ManagementFactory;
+
+/*
+ * JVM implementation of the probes used by BuildMetrics
+ */
+public final class Debug {
+
+    private Debug() {}
+
+    public static long threadCpuTimeNanos() {
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }
+
+    public static String getRuntimeStat(String statName) {
+        if (!"art.gc.bytes-allocated".equals(statName)) {
+            return null;
+        }
+        var threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        // the closest the JVM gets to the process wide counter of ART
+        var bean = (com.sun.management.ThreadMXBean) threads;
+        var total = 0L;
+        for (var allocated : bean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return String.valueOf(total);
+    }
+}
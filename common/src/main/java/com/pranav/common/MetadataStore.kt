@@ -0,0 +1,202 @@
+package com.pranav.common
+
+import org.json.JSONException
+import org.json.JSONObject
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/*
+ * Metadata of a project, such as the file open in the editor, held in memory
+ * once per project and written behind in a compact binary file. Changes are
+ * batched: the file is rewritten at most once per commit delay, into a
+ * temporary file renamed over the old one, so it always holds the state of a
+ * whole commit. Owners flush it when they stop, which also reports failures
+ * of the commits made in the background.
+ */
+class MetadataStore private constructor(private val file: File) {
+
+    private val values = hashMapOf<String, String>()
+    private var generation = 0L
+    private var committedGeneration = 0L
+    private var scheduled = false
+    private var error: IOException? = null
+
+    @Synchronized
+    fun get(key: String): String? = values[key]
+
+    @Synchronized
+    fun contains(key: String): Boolean = key in values
+
+    @Synchronized
+    fun put(key: String, value: String) {
+        values[key] = value
+        scheduleCommit()
+    }
+
+    @Synchronized
+    fun remove(key: String) {
+        if (values.remove(key) != null) {
+            scheduleCommit()
+        }
+    }
+
+    /*
+     * Writes the pending changes now. Failures of earlier commits made in
+     * the background are thrown here.
+     */
+    @Throws(IOException::class)
+    fun flush() {
+        commit()
+        synchronized(this) {
+            val e = error ?: return
+            error = null
+            throw e
+        }
+    }
+
+    // called with the lock held
+    private fun scheduleCommit() {
+        generation++
+        if (scheduled) {
+            return
+        }
+        scheduled = true
+        writer.schedule({
+            try {
+                commit()
+            } catch (e: IOException) {
+                synchronized(this) { error = e }
+            }
+        }, COMMIT_DELAY_MILLIS, TimeUnit.MILLISECONDS)
+    }
+
+    @Throws(IOException::class)
+    private fun commit() {
+        // commits of the same store never overlap
+        synchronized(file) {
+            val snapshot: Map<String, String>
+            val written: Long
+            synchronized(this) {
+                scheduled = false
+                if (generation == committedGeneration) {
+                    return
+                }
+                snapshot = HashMap(values)
+                written = generation
+            }
+            write(snapshot)
+            synchronized(this) { committedGeneration = written }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun write(snapshot: Map<String, String>) {
+        file.parentFile?.mkdirs()
+        val temp = File(file.path + ".tmp")
+        val stream = FileOutputStream(temp)
+        DataOutputStream(stream.buffered()).use { output ->
+            output.writeInt(VERSION)
+            output.writeInt(snapshot.size)
+            for ((name, value) in snapshot) {
+                writeString(output, name)
+                writeString(output, value)
+            }
+            output.flush()
+            stream.fd.sync()
+        }
+        if (!temp.renameTo(file)) {
+            throw IOException("Unable to write " + file)
+        }
+    }
+
+    private fun load() {
+        if (!file.exists()) {
+            return
+        }
+        try {
+            DataInputStream(file.inputStream().buffered()).use { input ->
+                if (input.readInt() != VERSION) {
+                    return
+                }
+                repeat(input.readInt()) {
+                    val name = readString(input)
+                    values[name] = readString(input)
+                }
+            }
+        } catch (e: IOException) {
+            // only complete files are renamed into place, so this is a different version
+            values.clear()
+        }
+    }
+
+    // the metadata of projects used to be kept as json
+    private fun migrate(jsonFile: File) {
+        if (file.exists() || !jsonFile.exists()) {
+            return
+        }
+        try {
+            val json = JSONObject(jsonFile.readText())
+            for (name in json.keys()) {
+                val value = json.get(name)
+                if (value is String) {
+                    values[name] = value
+                }
+            }
+            generation++
+            commit()
+            jsonFile.delete()
+        } catch (e: IOException) {
+            e.printStackTrace()
+        } catch (e: JSONException) {
+            jsonFile.delete()
+        }
+    }
+
+    companion object {
+        private const val VERSION = 2
+        private const val COMMIT_DELAY_MILLIS = 500L
+
+        private val writer =
+                Executors.newSingleThreadScheduledExecutor { r ->
+                    val thread = Thread(r, "Metadata writer")
+                    thread.isDaemon = true
+                    thread
+                }
+        private val stores = hashMapOf<String, MetadataStore>()
+
+        /*
+         * Returns the store of the given project, loading it only the first time
+         */
+        @JvmStatic
+        fun forProject(projectName: String, projectCacheDirPath: String): MetadataStore {
+            val file = File(projectCacheDirPath, projectName + ".meta")
+            synchronized(stores) {
+                return stores.getOrPut(file.absolutePath) {
+                    val store = MetadataStore(file)
+                    store.load()
+                    store.migrate(File(projectCacheDirPath, projectName + ".json"))
+                    store
+                }
+            }
+        }
+
+        private fun writeString(output: DataOutputStream, value: String) {
+            // writeUTF is limited to 64K
+            val bytes = value.toByteArray()
+            output.writeInt(bytes.size)
+            output.write(bytes)
+        }
+
+        private fun readString(input: DataInputStream): String {
+            val bytes = ByteArray(input.readInt())
+            input.readFully(bytes)
+            return String(bytes)
+        }
+    }
+}
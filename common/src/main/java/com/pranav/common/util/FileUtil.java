@@ -3,10 +3,14 @@ package com.pranav.common.util;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -14,6 +18,8 @@ import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class FileUtil {
 
@@ -45,7 +51,48 @@ public class FileUtil {
     }
 
     public static String readFile(File file) throws IOException {
-        return new String(Files.readAllBytes(file.toPath()));
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    /* Writes the content into a temporary file which is then renamed over the
+     * target, so the target holds either its old or its new content, even if
+     * the app dies while writing */
+    public static void writeFileAtomically(File file, String content, Charset charset)
+            throws IOException {
+        file.getParentFile().mkdirs();
+        var temp = new File(file.getPath() + ".tmp");
+        try (var stream = new FileOutputStream(temp)) {
+            var writer = new BufferedWriter(new OutputStreamWriter(stream, charset));
+            writer.write(content);
+            writer.flush();
+            stream.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to write " + file);
+        }
+    }
+
+    /* Returns the hex encoded SHA-256 digest of the contents of a file */
+    public static String getHash(File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        var buffer = new byte[8192];
+        try (var in = Files.newInputStream(file.toPath())) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        var hash = new StringBuilder();
+        for (var b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
     }
 
     public static void deleteFile(String p) {
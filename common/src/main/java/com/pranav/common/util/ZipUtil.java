@@ -3,64 +3,188 @@ package com.pranav.common.util;
 import android.content.Context;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
+/*
+ * Extracts archives shipped in the assets. The archive is copied out of the apk
+ * once, its entries are then read through the central directory and extracted
+ * by as many workers as there are processors. A marker is written to the
+ * destination when everything was extracted, so an extraction cut short by the
+ * app being closed is resumed on the next launch, keeping the entries which
+ * were already complete.
+ */
 public class ZipUtil {
 
-    private static int BUFFER_SIZE = 1024 * 10;
+    public interface ProgressListener {
+        void onProgress(int extracted, int total);
+    }
+
+    private static final int BUFFER_SIZE = 1024 * 256;
+    private static final String MARKER_PREFIX = ".extracted-";
+
+    public static boolean isExtracted(String zipFile, String destination) {
+        return new File(destination, MARKER_PREFIX + zipFile).exists();
+    }
 
-    public static void unzipFromAssets(Context context, String zipFile, String destination) {
+    /*
+     * Extracts the given archive of the assets into the destination, unless it
+     * was completely extracted before. The listener is called at most once for
+     * every percent extracted, from the extracting threads.
+     */
+    public static void unzipFromAssets(
+            Context context, String zipFile, String destination, ProgressListener listener)
+            throws IOException {
+        if (isExtracted(zipFile, destination)) {
+            return;
+        }
+        var archive = new File(context.getCacheDir(), zipFile);
         try {
-            var stream = context.getAssets().open(zipFile);
-            unzip(stream, destination);
-        } catch (IOException e) {
-            e.printStackTrace();
+            copyFromAssets(context, zipFile, archive);
+            unzip(archive, destination, listener);
+        } finally {
+            archive.delete();
+        }
+        var marker = new File(destination, MARKER_PREFIX + zipFile);
+        if (!marker.exists() && !marker.createNewFile()) {
+            throw new IOException("Unable to create " + marker);
         }
     }
 
-    private static void unzip(InputStream stream, String destination) {
-        dirChecker(destination, "");
-        byte[] buffer = new byte[BUFFER_SIZE];
-        try {
-            var zin = new ZipInputStream(stream);
-            ZipEntry ze = null;
-            while ((ze = zin.getNextEntry()) != null) {
-                if (ze.isDirectory()) {
-                    dirChecker(destination, ze.getName());
+    /*
+     * Copies a file of the assets, the target only appears once it was
+     * completely written
+     */
+    public static void copyFromAssets(Context context, String name, File target)
+            throws IOException {
+        target.getParentFile().mkdirs();
+        var part = new File(target.getPath() + ".part");
+        try (var output = new FileOutputStream(part).getChannel()) {
+            try (var fd = context.getAssets().openFd(name);
+                    var input = fd.createInputStream().getChannel()) {
+                // assets stored uncompressed are copied straight out of the apk
+                long copied = 0;
+                while (copied < fd.getLength()) {
+                    copied +=
+                            input.transferTo(
+                                    fd.getStartOffset() + copied, fd.getLength() - copied, output);
+                }
+            } catch (FileNotFoundException e) {
+                // compressed assets can't be opened as a file descriptor
+                try (var input = Channels.newChannel(context.getAssets().open(name))) {
+                    output.transferFrom(input, 0, Long.MAX_VALUE);
+                }
+            }
+        }
+        if (!part.renameTo(target)) {
+            throw new IOException("Unable to write " + target);
+        }
+    }
+
+    private static void unzip(File archive, String destination, ProgressListener listener)
+            throws IOException {
+        var root = new File(destination);
+        root.mkdirs();
+
+        var entries = new ArrayList<String>();
+        try (var zip = new ZipFile(archive)) {
+            var enumeration = zip.entries();
+            while (enumeration.hasMoreElements()) {
+                var entry = enumeration.nextElement();
+                if (entry.isDirectory()) {
+                    new File(root, entry.getName()).mkdirs();
                 } else {
-                    var f = new File(destination, ze.getName());
-                    if (!f.toPath().normalize().startsWith(destination))
-                        throw new SecurityException(
-                                "Potentially harmful files detected inside zip");
-                    if (!f.exists()) {
-                        if (!f.createNewFile()) {
-                            continue;
-                        }
-                        var fout = new FileOutputStream(f);
-                        int count;
-                        while ((count = zin.read(buffer)) != -1) {
-                            fout.write(buffer, 0, count);
-                        }
-                        zin.closeEntry();
-                        fout.close();
-                    }
+                    entries.add(entry.getName());
                 }
             }
-            zin.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        var jobs = Math.min(Runtime.getRuntime().availableProcessors(), entries.size());
+        var pool = Executors.newFixedThreadPool(jobs);
+        var extracted = new AtomicInteger();
+        var total = entries.size();
+        try {
+            var tasks = new ArrayList<Future<Void>>();
+            for (int i = 0; i < jobs; i++) {
+                final var first = i;
+                tasks.add(
+                        pool.submit(
+                                () -> {
+                                    // every worker reads through a ZipFile of its own
+                                    var buffer = new byte[BUFFER_SIZE];
+                                    try (var zip = new ZipFile(archive)) {
+                                        for (int j = first; j < total; j += jobs) {
+                                            extract(zip, zip.getEntry(entries.get(j)), root, buffer);
+                                            var count = extracted.incrementAndGet();
+                                            if (listener != null
+                                                    && count * 100 / total
+                                                            != (count - 1) * 100 / total) {
+                                                listener.onProgress(count, total);
+                                            }
+                                        }
+                                    }
+                                    return null;
+                                }));
+            }
+            waitFor(tasks);
+        } finally {
+            pool.shutdownNow();
         }
     }
 
-    private static void dirChecker(String destination, String dir) {
-        var f = new File(destination, dir);
+    private static void extract(ZipFile zip, ZipEntry entry, File root, byte[] buffer)
+            throws IOException {
+        var f = new File(root, entry.getName());
+        if (!f.toPath().normalize().startsWith(root.toPath()))
+            throw new SecurityException("Potentially harmful files detected inside zip");
+        // files are renamed into place once complete, so these are from an earlier run
+        if (f.exists() && f.length() == entry.getSize()) {
+            return;
+        }
+        f.getParentFile().mkdirs();
+        var part = new File(f.getPath() + ".part");
+        try (var input = zip.getInputStream(entry);
+                var output = new FileOutputStream(part)) {
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+        }
+        if (!part.renameTo(f)) {
+            throw new IOException("Unable to extract " + f);
+        }
+    }
 
-        if (!f.isDirectory()) {
-            f.mkdirs();
+    private static void waitFor(List<Future<Void>> tasks) throws IOException {
+        try {
+            for (var task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Extraction was interrupted", e);
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
         }
     }
 }
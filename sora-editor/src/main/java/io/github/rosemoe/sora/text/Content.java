@@ -26,7 +26,6 @@ package io.github.rosemoe.sora.text;
 import androidx.annotation.NonNull;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -42,23 +41,31 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class Content implements CharSequence {
 
     public final static int DEFAULT_MAX_UNDO_STACK_SIZE = 500;
+    /**
+     * @deprecated Lines are kept in a tree, which has no capacity
+     */
+    @Deprecated
     public final static int DEFAULT_LIST_CAPACITY = 1000;
 
     private static int sInitialListCapacity;
+    private static boolean sUseTreeIndexer = true;
 
     static {
         setInitialLineCapacity(DEFAULT_LIST_CAPACITY);
     }
 
-    private final List<ContentLine> lines;
+    private LineTree lines;
     private final List<ContentListener> contentListeners;
     private final ReadWriteLock lock;
     private int textLength;
+    private long documentVersion;
+    private boolean readOnly;
     private int nestedBatchEdit;
     private Indexer indexer;
     private UndoManager undoManager;
     private Cursor cursor;
     private LineRemoveListener lineListener;
+    private volatile LineCache lastLine;
 
     /**
      * This constructor will create a Content object with no text
@@ -91,12 +98,12 @@ public class Content implements CharSequence {
         }
         textLength = 0;
         nestedBatchEdit = 0;
-        lines = new ArrayList<>(getInitialLineCapacity());
+        lines = new LineTree();
         lines.add(new ContentLine());
         contentListeners = new ArrayList<>();
         undoManager = new UndoManager();
         setMaxUndoStackSize(Content.DEFAULT_MAX_UNDO_STACK_SIZE);
-        indexer = new CachedIndexer(this);
+        indexer = createIndexer();
         if (src.length() == 0) {
             setUndoEnabled(true);
             return;
@@ -110,7 +117,9 @@ public class Content implements CharSequence {
      * Returns the default capacity of text line list
      *
      * @return Default capacity
+     * @deprecated Lines are kept in a tree, which has no capacity. The value has no effect
      */
+    @Deprecated
     public static int getInitialLineCapacity() {
         return Content.sInitialListCapacity;
     }
@@ -119,7 +128,9 @@ public class Content implements CharSequence {
      * Set the default capacity of text line list
      *
      * @param capacity Default capacity
+     * @deprecated Lines are kept in a tree, which has no capacity. The value has no effect
      */
+    @Deprecated
     public static void setInitialLineCapacity(int capacity) {
         if (capacity <= 0) {
             throw new IllegalArgumentException("capacity can not be negative or zero");
@@ -127,6 +138,23 @@ public class Content implements CharSequence {
         sInitialListCapacity = capacity;
     }
 
+    /**
+     * Whether new Content objects use a {@link TreeIndexer}, which is the default
+     */
+    public static boolean isUsingTreeIndexer() {
+        return Content.sUseTreeIndexer;
+    }
+
+    /**
+     * Set whether new Content objects and their cursors use a {@link TreeIndexer}, answering
+     * queries in O(log n), or a {@link CachedIndexer}, walking lines from cached positions
+     *
+     * @param useTreeIndexer Whether to use a TreeIndexer
+     */
+    public static void setUseTreeIndexer(boolean useTreeIndexer) {
+        sUseTreeIndexer = useTreeIndexer;
+    }
+
     /**
      * Test whether the two ContentLine have the same content
      *
@@ -169,8 +197,14 @@ public class Content implements CharSequence {
         checkIndex(index);
         lock(false);
         try {
-            var p = getIndexer().getCharPosition(index);
-            return lines.get(p.line).charAt(p.column);
+            var cache = lastLine;
+            if (cache == null || cache.version != documentVersion || index < cache.start
+                    || index > cache.start + cache.line.length()) {
+                int line = lines.findLine(index);
+                cache = new LineCache(documentVersion, lines.getLineStart(line), lines.get(line));
+                lastLine = cache;
+            }
+            return cache.line.charAt(index - cache.start);
         } finally {
             unlock(false);
         }
@@ -254,6 +288,39 @@ public class Content implements CharSequence {
         return lines.size();
     }
 
+    /**
+     * Get the index of the first character of the given line, in O(log n)
+     *
+     * @param line The line to get
+     * @return Index of the line start
+     */
+    public int getLineStartIndex(int line) {
+        lock(false);
+        try {
+            checkLine(line);
+            return lines.getLineStart(line);
+        } finally {
+            unlock(false);
+        }
+    }
+
+    /**
+     * Get the line holding the character at the given index, in O(log n).
+     * The index of a line separator belongs to the line it ends.
+     *
+     * @param index The index of the character
+     * @return Line of the character
+     */
+    public int getLineAtIndex(int index) {
+        checkIndex(index);
+        lock(false);
+        try {
+            return lines.findLine(index);
+        } finally {
+            unlock(false);
+        }
+    }
+
     /**
      * Get how many characters is on the given line
      * If (line < 0 or line >= getLineCount()),it will throw a IndexOutOfBoundsException
@@ -328,6 +395,7 @@ public class Content implements CharSequence {
      * @param text   The text you want to insert at the position
      */
     public void insert(int line, int column, CharSequence text) {
+        checkWritable();
         lock(true);
         try {
             insertInternal(line, column, text);
@@ -354,12 +422,12 @@ public class Content implements CharSequence {
         if (workIndex == -1) {
             workIndex = 0;
         }
-        var currLine = lines.get(workLine);
+        var currLine = lines.getForWrite(workLine);
         var helper = InsertTextHelper.forInsertion(text);
         int type, peekType = InsertTextHelper.TYPE_EOF;
         boolean fromPeek = false;
         var minusLength = 0;
-        var newLines = new LinkedList<ContentLine>();
+        var newLines = new ArrayList<ContentLine>();
         while (true) {
             type = fromPeek ? peekType : helper.forward();
             fromPeek = false;
@@ -385,7 +453,8 @@ public class Content implements CharSequence {
                 workLine++;
             }
         }
-        lines.addAll(line + 1, newLines);
+        lines.update(line);
+        lines.insert(line + 1, newLines);
         helper.recycle();
         textLength += text.length() - minusLength;
         if (minusLength != 0 && !contentListeners.isEmpty()) {
@@ -401,6 +470,7 @@ public class Content implements CharSequence {
      * @param end   End position in content
      */
     public void delete(int start, int end) {
+        checkWritable();
         checkIndex(start);
         checkIndex(end);
         lock(true);
@@ -424,6 +494,7 @@ public class Content implements CharSequence {
      * @param columnOnEndLine   The end column position
      */
     public void delete(int startLine, int columnOnStartLine, int endLine, int columnOnEndLine) {
+        checkWritable();
         lock(true);
         try {
             deleteInternal(startLine, columnOnStartLine, endLine, columnOnEndLine);
@@ -447,7 +518,7 @@ public class Content implements CharSequence {
             if (beginIdx > columnOnEndLine) {
                 throw new IllegalArgumentException("start > end");
             }
-            ContentLine curr = lines.get(startLine);
+            ContentLine curr = lines.getForWrite(startLine);
             int len = curr.length();
             if (beginIdx < 0 || beginIdx > len || columnOnEndLine > len) {
                 throw new StringIndexOutOfBoundsException("column start or column end is out of bounds");
@@ -467,15 +538,17 @@ public class Content implements CharSequence {
 
             changedContent.append(curr, beginIdx, columnOnEndLine);
             curr.delete(beginIdx, columnOnEndLine);
+            lines.update(startLine);
             textLength -= columnOnEndLine - columnOnStartLine;
             if (columnOnStartLine == -1) {
                 if (startLine == 0) {
                     textLength++;
                 } else {
-                    ContentLine previous = lines.get(startLine - 1);
+                    ContentLine previous = lines.getForWrite(startLine - 1);
                     columnOnStartLine = previous.length();
                     previous.append(curr);
                     ContentLine rm = lines.remove(startLine);
+                    lines.update(startLine - 1);
                     if (lineListener != null) {
                         lineListener.onRemove(this, rm);
                     }
@@ -494,33 +567,32 @@ public class Content implements CharSequence {
                 lis.beforeModification(this);
             }
 
-            for (int i = startLine + 1; i <= endLine - 1; i++) {
-                var line = lines.get(i);
+            lines.forEach(startLine + 1, endLine, (i, line) -> {
                 if (lineListener != null) {
                     lineListener.onRemove(this, line);
                 }
                 textLength -= line.length() + 1;
                 changedContent.append('\n').append(line);
-            }
+                return true;
+            });
             if (lineListener != null) {
                 lineListener.onRemove(this, lines.get(endLine));
             }
-            if (endLine > startLine + 1) {
-                lines.subList(startLine + 1, endLine).clear();
-            }
+            lines.remove(startLine + 1, endLine);
 
             int currEnd = startLine + 1;
-            ContentLine start = lines.get(startLine);
+            ContentLine start = lines.getForWrite(startLine);
+            // the end line is only read, as it is dropped
             ContentLine end = lines.get(currEnd);
             textLength -= start.length() - columnOnStartLine;
             changedContent.insert(0, start, columnOnStartLine, start.length());
             start.delete(columnOnStartLine, start.length());
             textLength -= columnOnEndLine;
             changedContent.append('\n').append(end, 0, columnOnEndLine);
-            end.delete(0, columnOnEndLine);
             textLength--;
             lines.remove(currEnd);
-            start.append(end);
+            start.append(end, columnOnEndLine, end.length());
+            lines.update(startLine);
         } else {
             throw new IllegalArgumentException("start line > end line");
         }
@@ -541,6 +613,7 @@ public class Content implements CharSequence {
         if (text == null) {
             throw new IllegalArgumentException("text can not be null");
         }
+        checkWritable();
         lock(true);
         try {
             this.dispatchBeforeReplace();
@@ -638,6 +711,24 @@ public class Content implements CharSequence {
         undoManager.setMaxUndoStackSize(maxSize);
     }
 
+    /**
+     * Get the limit of the memory taken by the history of UndoManager
+     *
+     * @return max bytes
+     */
+    public long getMaxUndoBytes() {
+        return undoManager.getMaxUndoBytes();
+    }
+
+    /**
+     * Set the limit of the memory taken by the history of UndoManager
+     *
+     * @param maxBytes New max bytes
+     */
+    public void setMaxUndoBytes(long maxBytes) {
+        undoManager.setMaxUndoBytes(maxBytes);
+    }
+
     /**
      * A delegate method.
      * Notify the UndoManager to begin batch edit(enter a new layer).
@@ -706,6 +797,20 @@ public class Content implements CharSequence {
         contentListeners.remove(listener);
     }
 
+    /**
+     * Create an indexer of the type selected by {@link #setUseTreeIndexer(boolean)}
+     */
+    Indexer createIndexer() {
+        return sUseTreeIndexer ? new TreeIndexer(this) : new CachedIndexer(this);
+    }
+
+    /**
+     * Get the lines, for the indexers which take the lock themselves
+     */
+    LineTree getLineTree() {
+        return lines;
+    }
+
     /**
      * Get the using {@link Indexer} object
      *
@@ -743,13 +848,16 @@ public class Content implements CharSequence {
             c.insert(0, 0, lines.get(startLine).subSequence(startColumn, endColumn));
         } else if (startLine < endLine) {
             c.insert(0, 0, lines.get(startLine).subSequence(startColumn, lines.get(startLine).length()));
-            for (int i = startLine + 1; i < endLine; i++) {
-                c.lines.add(new ContentLine(lines.get(i)));
-                c.textLength += lines.get(i).length() + 1;
-            }
+            var copied = new ArrayList<ContentLine>(endLine - startLine);
+            lines.forEach(startLine + 1, endLine, (i, line) -> {
+                copied.add(new ContentLine(line));
+                c.textLength += line.length() + 1;
+                return true;
+            });
             ContentLine end = lines.get(endLine);
-            c.lines.add(new ContentLine().insert(0, end, 0, endColumn));
+            copied.add(new ContentLine().insert(0, end, 0, endColumn));
             c.textLength += endColumn + 1;
+            c.lines.insert(1, copied);
         } else {
             throw new StringIndexOutOfBoundsException("start > end");
         }
@@ -818,17 +926,13 @@ public class Content implements CharSequence {
      */
     public void appendToStringBuilder(StringBuilder sb) {
         sb.ensureCapacity(sb.length() + length());
-        boolean first = true;
-        final int lines = getLineCount();
-        for (int i = 0; i < lines; i++) {
-            ContentLine line = this.lines.get(i);
-            if (!first) {
+        lines.forEach(0, getLineCount(), (i, line) -> {
+            if (i != 0) {
                 sb.append('\n');
-            } else {
-                first = false;
             }
             line.appendTo(sb);
-        }
+            return true;
+        });
     }
 
     /**
@@ -868,6 +972,7 @@ public class Content implements CharSequence {
      * @param e Text deleted
      */
     private void dispatchAfterDelete(int a, int b, int c, int d, CharSequence e) {
+        documentVersion++;
         undoManager.afterDelete(this, a, b, c, d, e);
         if (cursor != null)
             cursor.afterDelete(a, b, c, d, e);
@@ -889,6 +994,7 @@ public class Content implements CharSequence {
      * @param e Text deleted
      */
     private void dispatchAfterInsert(int a, int b, int c, int d, CharSequence e) {
+        documentVersion++;
         undoManager.afterInsert(this, a, b, c, d, e);
         if (cursor != null)
             cursor.afterInsert(a, b, c, d, e);
@@ -949,22 +1055,53 @@ public class Content implements CharSequence {
     /**
      * Copy text in this Content object.
      * Returns a new Content object with the same text as this object.
+     * <p>
+     * This takes O(1): the two objects share their lines, and a shared line is copied by
+     * whichever of them modifies it first.
      */
     public Content copyText(boolean newContentThreadSafe) {
         lock(false);
         try {
             var n = new Content(null, newContentThreadSafe);
-            n.lines.remove(0);
-            for (int i = 0; i < getLineCount(); i++) {
-                var line = lines.get(i);
-                n.lines.add(line.subSequence(0, line.length()));
-            }
+            n.lines = lines.fork();
+            n.textLength = textLength;
+            n.documentVersion = documentVersion;
             return n;
         } finally {
             unlock(false);
         }
     }
 
+    /**
+     * Take a read-only snapshot of the text in O(1).
+     * The snapshot never changes whatever is done to this object afterwards, so it can be
+     * read from any thread without locking. Its {@link #getDocumentVersion()} tells which
+     * version of this object it was taken from.
+     */
+    public Content snapshot() {
+        var snapshot = copyText(false);
+        snapshot.setUndoEnabled(false);
+        snapshot.readOnly = true;
+        return snapshot;
+    }
+
+    /**
+     * Get the version of the text, increased by every modification
+     */
+    public long getDocumentVersion() {
+        return documentVersion;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("Snapshots can not be modified");
+        }
+    }
+
     protected int getColumnCountUnchecked(int line) {
         return lines.get(line).length();
     }
@@ -979,9 +1116,10 @@ public class Content implements CharSequence {
     public void runReadActionsOnLines(int startLine, int endLine, @NonNull ContentLineConsumer consumer) {
         lock(false);
         try {
-            for (int i = startLine; i <= endLine; i++) {
-                consumer.accept(i, lines.get(i));
-            }
+            lines.forEach(startLine, endLine + 1, (i, line) -> {
+                consumer.accept(i, line);
+                return true;
+            });
         } finally {
             unlock(false);
         }
@@ -998,9 +1136,10 @@ public class Content implements CharSequence {
         lock(false);
         try {
             var flag = new ContentLineConsumer2.AbortFlag();
-            for (int i = startLine; i <= endLine && !flag.set; i++) {
-                consumer.accept(i, lines.get(i), flag);
-            }
+            lines.forEach(startLine, endLine + 1, (i, line) -> {
+                consumer.accept(i, line, flag);
+                return !flag.set;
+            });
         } finally {
             unlock(false);
         }
@@ -1022,4 +1161,24 @@ public class Content implements CharSequence {
         }
 
     }
+
+    /**
+     * The line last read by {@link #charAt(int)}, so that reading characters one after another
+     * doesn't descend the line tree for each of them.
+     * It is only valid for the {@link #getDocumentVersion()} it was created at.
+     */
+    private final static class LineCache {
+
+        final long version;
+        final int start;
+        final ContentLine line;
+
+        LineCache(long version, int start, ContentLine line) {
+            this.version = version;
+            this.start = start;
+            this.line = line;
+        }
+
+    }
+
 }
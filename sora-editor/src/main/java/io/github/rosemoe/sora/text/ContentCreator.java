@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.charset.Charset;
 
 /**
  * Utility class for creating {@link Content} objects
@@ -42,6 +43,13 @@ public class ContentCreator {
         return fromReader(new InputStreamReader(stream));
     }
 
+    /**
+     * Create a {@link Content} from stream, decoded with the given charset
+     */
+    public static Content fromStream(InputStream stream, Charset charset) throws IOException {
+        return fromReader(new InputStreamReader(stream, charset));
+    }
+
     /**
      * Create a {@link Content} from reader
      */
@@ -50,15 +58,32 @@ public class ContentCreator {
         content.setUndoEnabled(false);
         var buffer = new char[8192 * 2];
         var wrapper = new CharArrayWrapper(buffer, 0);
-        int count;
-        while ((count = reader.read(buffer)) != -1) {
-            wrapper.setDataCount(count);
-            var line = content.getLineCount() - 1;
-            content.insert(line, content.getColumnCount(line), wrapper);
+        int count, kept = 0;
+        while ((count = reader.read(buffer, kept, buffer.length - kept)) != -1) {
+            count += kept;
+            // a '\r' at the end may be followed by the '\n' of the same separator
+            kept = buffer[count - 1] == '\r' ? 1 : 0;
+            wrapper.setDataCount(count - kept);
+            appendText(content, wrapper);
+            if (kept != 0) {
+                buffer[0] = '\r';
+            }
+        }
+        if (kept != 0) {
+            wrapper.setDataCount(kept);
+            appendText(content, wrapper);
         }
         reader.close();
         content.setUndoEnabled(true);
         return content;
     }
 
+    /**
+     * Append text to the end of the given {@link Content}
+     */
+    public static void appendText(Content content, CharSequence text) {
+        var line = content.getLineCount() - 1;
+        content.insert(line, content.getColumnCount(line), text);
+    }
+
 }
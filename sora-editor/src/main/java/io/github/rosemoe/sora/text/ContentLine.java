@@ -40,6 +40,11 @@ public class ContentLine implements CharSequence, GetChars {
     public float[] widthCache;
     public long timestamp;
     private int length;
+    /**
+     * The {@link LineTree} which may modify this line in place, lines shared with
+     * another tree are copied before being modified
+     */
+    Object owner;
 
     public ContentLine() {
         this(true);
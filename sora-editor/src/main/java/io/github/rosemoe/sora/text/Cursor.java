@@ -33,7 +33,7 @@ import io.github.rosemoe.sora.util.IntPair;
 public final class Cursor {
 
     private final Content mContent;
-    private final CachedIndexer mIndexer;
+    private final Indexer mIndexer;
     private CharPosition mLeft, mRight;
     private CharPosition cache0, cache1, cache2;
 
@@ -44,7 +44,7 @@ public final class Cursor {
      */
     public Cursor(Content content) {
         mContent = content;
-        mIndexer = new CachedIndexer(content);
+        mIndexer = content.createIndexer();
         mLeft = new CharPosition().zero();
         mRight = new CharPosition().zero();
     }
@@ -175,7 +175,10 @@ public final class Cursor {
      * @param line First visible line
      */
     public void updateCache(int line) {
-        mIndexer.getCharIndex(line, 0);
+        // other indexers have no cache
+        if (mIndexer instanceof CachedIndexer) {
+            mIndexer.getCharIndex(line, 0);
+        }
     }
 
     /**
@@ -183,7 +186,7 @@ public final class Cursor {
      *
      * @return Using Indexer
      */
-    public CachedIndexer getIndexer() {
+    public Indexer getIndexer() {
         return mIndexer;
     }
 
@@ -281,7 +284,9 @@ public final class Cursor {
      * Internal call back before replace
      */
     void beforeReplace() {
-        mIndexer.beforeReplace(mContent);
+        if (mIndexer instanceof ContentListener) {
+            ((ContentListener) mIndexer).beforeReplace(mContent);
+        }
     }
 
     /**
@@ -295,7 +300,9 @@ public final class Cursor {
      */
     void afterInsert(int startLine, int startColumn, int endLine, int endColumn,
                      CharSequence insertedContent) {
-        mIndexer.afterInsert(mContent, startLine, startColumn, endLine, endColumn, insertedContent);
+        if (mIndexer instanceof ContentListener) {
+            ((ContentListener) mIndexer).afterInsert(mContent, startLine, startColumn, endLine, endColumn, insertedContent);
+        }
         int beginIdx = cache0.getIndex();
         if (getLeft() >= beginIdx) {
             mLeft = mIndexer.getCharPosition(getLeft() + insertedContent.length()).fromThis();
@@ -316,7 +323,9 @@ public final class Cursor {
      */
     void afterDelete(int startLine, int startColumn, int endLine, int endColumn,
                      CharSequence deletedContent) {
-        mIndexer.afterDelete(mContent, startLine, startColumn, endLine, endColumn, deletedContent);
+        if (mIndexer instanceof ContentListener) {
+            ((ContentListener) mIndexer).afterDelete(mContent, startLine, startColumn, endLine, endColumn, deletedContent);
+        }
         int beginIdx = cache1.getIndex();
         int endIdx = cache2.getIndex();
         int left = getLeft();
@@ -0,0 +1,357 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2022  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.text;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Balanced tree holding the lines of a {@link Content}, in place of a list.
+ * Every node knows how many lines and characters its subtree holds, so inserting or
+ * removing lines anywhere, finding a line by index, finding the line holding a character
+ * index and finding where a line starts all take O(log n).
+ * <p>
+ * The tree is a randomized binary search tree keyed by position. Nodes are never modified
+ * once created: changes copy the path from the root to the changed nodes. The lines
+ * themselves are modified in place by {@link Content}, which calls {@link #update(int)}
+ * afterwards so the lengths of the nodes above them are recomputed.
+ * <p>
+ * As nodes are immutable, {@link #fork()} shares the whole tree in O(1). Lines are only
+ * modified in place by the tree owning them, lines shared by a fork are copied by
+ * {@link #getForWrite(int)} first, so neither tree ever sees the edits of the other.
+ *
+ * @author Rose
+ */
+final class LineTree {
+
+    /**
+     * Visits the lines of the tree in order, returning false to stop
+     */
+    interface LineVisitor {
+
+        boolean visit(int index, @NonNull ContentLine line);
+
+    }
+
+    private final static class Node {
+
+        final ContentLine line;
+        final Node left;
+        final Node right;
+        /**
+         * Lines in this subtree
+         */
+        final int count;
+        /**
+         * Characters in this subtree, not counting line separators
+         */
+        final int length;
+
+        Node(ContentLine line, Node left, Node right) {
+            this.line = line;
+            this.left = left;
+            this.right = right;
+            count = count(left) + count(right) + 1;
+            length = length(left) + length(right) + line.length();
+        }
+
+    }
+
+    private Node root;
+    private Object owner = new Object();
+    private int seed = 0x2545F491;
+
+    /**
+     * Create a tree sharing the lines of this one, in O(1)
+     */
+    public LineTree fork() {
+        var fork = new LineTree();
+        fork.root = root;
+        fork.seed = seed;
+        // the lines owned until now are shared from here on
+        owner = new Object();
+        return fork;
+    }
+
+    /**
+     * Get how many lines there are
+     */
+    public int size() {
+        return count(root);
+    }
+
+    /**
+     * Get the length of the text, with a separator between each two lines
+     */
+    public int getTextLength() {
+        var count = count(root);
+        return length(root) + (count == 0 ? 0 : count - 1);
+    }
+
+    public ContentLine get(int line) {
+        checkLine(line, size());
+        var node = root;
+        while (true) {
+            var leftCount = count(node.left);
+            if (line < leftCount) {
+                node = node.left;
+            } else if (line == leftCount) {
+                return node.line;
+            } else {
+                line -= leftCount + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Get the given line to modify it in place, copying it first if it is shared
+     */
+    public ContentLine getForWrite(int line) {
+        var current = get(line);
+        if (current.owner == owner) {
+            return current;
+        }
+        var copy = current.subSequence(0, current.length());
+        copy.owner = owner;
+        root = replace(root, line, copy);
+        return copy;
+    }
+
+    /**
+     * Index of the first character of the given line in the text
+     */
+    public int getLineStart(int line) {
+        checkLine(line, size() + 1);
+        var node = root;
+        var start = 0;
+        while (node != null) {
+            var leftCount = count(node.left);
+            if (line <= leftCount) {
+                node = node.left;
+            } else {
+                start += length(node.left) + leftCount + node.line.length() + 1;
+                line -= leftCount + 1;
+                node = node.right;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Find the line holding the given character index. The index of a line separator, or
+     * the length of the text, belongs to the line before it.
+     */
+    public int findLine(int index) {
+        if (index < 0 || index > getTextLength()) {
+            throw new StringIndexOutOfBoundsException("Index " + index + " out of bounds. length:" + getTextLength());
+        }
+        var node = root;
+        var line = 0;
+        while (true) {
+            var start = length(node.left) + count(node.left);
+            if (index < start) {
+                node = node.left;
+            } else if (index <= start + node.line.length()) {
+                return line + count(node.left);
+            } else {
+                index -= start + node.line.length() + 1;
+                line += count(node.left) + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    public void add(ContentLine line) {
+        adopt(line);
+        root = merge(root, new Node(line, null, null));
+    }
+
+    /**
+     * Insert the given lines before the given line
+     */
+    public void insert(int line, List<ContentLine> lines) {
+        checkLine(line, size() + 1);
+        if (lines.isEmpty()) {
+            return;
+        }
+        for (var added : lines) {
+            adopt(added);
+        }
+        var parts = split(root, line);
+        root = merge(merge(parts[0], build(lines, 0, lines.size())), parts[1]);
+    }
+
+    public ContentLine remove(int line) {
+        var removed = get(line);
+        remove(line, line + 1);
+        return removed;
+    }
+
+    /**
+     * Remove the lines in [from, to)
+     */
+    public void remove(int from, int to) {
+        checkLine(from, size() + 1);
+        checkLine(to, size() + 1);
+        if (from >= to) {
+            return;
+        }
+        var tail = split(root, to);
+        var head = split(tail[0], from);
+        root = merge(head[0], tail[1]);
+    }
+
+    /**
+     * Recompute the lengths above the given line after it was modified
+     */
+    public void update(int line) {
+        checkLine(line, size());
+        root = update(root, line);
+    }
+
+    public void clear() {
+        root = null;
+    }
+
+    /**
+     * Visit the lines in [from, to) in order
+     */
+    public void forEach(int from, int to, @NonNull LineVisitor visitor) {
+        forEach(root, 0, from, to, visitor);
+    }
+
+    private boolean forEach(Node node, int offset, int from, int to, LineVisitor visitor) {
+        if (node == null || from >= to) {
+            return true;
+        }
+        var index = offset + count(node.left);
+        if (from < index && !forEach(node.left, offset, from, to, visitor)) {
+            return false;
+        }
+        if (index >= from && index < to && !visitor.visit(index, node.line)) {
+            return false;
+        }
+        if (to > index + 1) {
+            return forEach(node.right, index + 1, from, to, visitor);
+        }
+        return true;
+    }
+
+    private Node update(Node node, int line) {
+        return replace(node, line, null);
+    }
+
+    /**
+     * Copy the path to the given line, putting another line in its place if given
+     */
+    private Node replace(Node node, int line, ContentLine replacement) {
+        var leftCount = count(node.left);
+        if (line < leftCount) {
+            return new Node(node.line, replace(node.left, line, replacement), node.right);
+        } else if (line == leftCount) {
+            return new Node(replacement == null ? node.line : replacement, node.left, node.right);
+        } else {
+            return new Node(node.line, node.left, replace(node.right, line - leftCount - 1, replacement));
+        }
+    }
+
+    /**
+     * Lines created for this tree belong to it
+     */
+    private void adopt(ContentLine line) {
+        if (line.owner == null) {
+            line.owner = owner;
+        }
+    }
+
+    /**
+     * Split the tree into its first {@code line} lines and the rest
+     */
+    private Node[] split(Node node, int line) {
+        if (node == null) {
+            return new Node[2];
+        }
+        var leftCount = count(node.left);
+        if (line <= leftCount) {
+            var parts = split(node.left, line);
+            parts[1] = new Node(node.line, parts[1], node.right);
+            return parts;
+        } else {
+            var parts = split(node.right, line - leftCount - 1);
+            parts[0] = new Node(node.line, node.left, parts[0]);
+            return parts;
+        }
+    }
+
+    /**
+     * Join two trees, the root is chosen with a probability matching the size of
+     * each tree, which keeps the depth logarithmic whatever the order of edits
+     */
+    private Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (nextRandom(a.count + b.count) < a.count) {
+            return new Node(a.line, a.left, merge(a.right, b));
+        } else {
+            return new Node(b.line, merge(a, b.left), b.right);
+        }
+    }
+
+    private Node build(List<ContentLine> lines, int from, int to) {
+        if (from >= to) {
+            return null;
+        }
+        var mid = (from + to) >>> 1;
+        return new Node(lines.get(mid), build(lines, from, mid), build(lines, mid + 1, to));
+    }
+
+    private int nextRandom(int bound) {
+        // xorshift, no need for anything stronger here
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return (seed & Integer.MAX_VALUE) % bound;
+    }
+
+    private static void checkLine(int line, int bound) {
+        if (line < 0 || line >= bound) {
+            throw new StringIndexOutOfBoundsException("Line " + line + " out of bounds [0, " + bound + ")");
+        }
+    }
+
+    private static int count(Node node) {
+        return node == null ? 0 : node.count;
+    }
+
+    private static int length(Node node) {
+        return node == null ? 0 : node.length;
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2022  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.text;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Indexer Impl for Content
+ * Backed by the line tree of the Content
+ * <p>
+ * Every node of the tree knows how many lines and characters its subtree holds, so an index is
+ * turned into (line,column) and back in O(log n) wherever it is, with no cache to look through
+ * and no work to do on edits as the tree is kept up to date by the Content itself.
+ * Querying into a given {@link CharPosition} allocates nothing.
+ *
+ * @author Rose
+ */
+public final class TreeIndexer implements Indexer {
+
+    private final Content mContent;
+
+    /**
+     * Create a new TreeIndexer for the given content
+     *
+     * @param content Content to manage
+     */
+    TreeIndexer(Content content) {
+        mContent = content;
+    }
+
+    @Override
+    public int getCharIndex(int line, int column) {
+        mContent.checkLineAndColumn(line, column, true);
+        mContent.lock(false);
+        try {
+            return mContent.getLineTree().getLineStart(line) + column;
+        } finally {
+            mContent.unlock(false);
+        }
+    }
+
+    @Override
+    public int getCharLine(int index) {
+        mContent.checkIndex(index);
+        mContent.lock(false);
+        try {
+            return mContent.getLineTree().findLine(index);
+        } finally {
+            mContent.unlock(false);
+        }
+    }
+
+    @Override
+    public int getCharColumn(int index) {
+        mContent.checkIndex(index);
+        mContent.lock(false);
+        try {
+            var lines = mContent.getLineTree();
+            return index - lines.getLineStart(lines.findLine(index));
+        } finally {
+            mContent.unlock(false);
+        }
+    }
+
+    @NonNull
+    @Override
+    public CharPosition getCharPosition(int index) {
+        var pos = new CharPosition();
+        getCharPosition(index, pos);
+        return pos;
+    }
+
+    @NonNull
+    @Override
+    public CharPosition getCharPosition(int line, int column) {
+        var pos = new CharPosition();
+        getCharPosition(line, column, pos);
+        return pos;
+    }
+
+    @Override
+    public void getCharPosition(int index, @NonNull CharPosition dest) {
+        mContent.checkIndex(index);
+        mContent.lock(false);
+        try {
+            var lines = mContent.getLineTree();
+            var line = lines.findLine(index);
+            dest.index = index;
+            dest.line = line;
+            dest.column = index - lines.getLineStart(line);
+        } finally {
+            mContent.unlock(false);
+        }
+    }
+
+    @Override
+    public void getCharPosition(int line, int column, @NonNull CharPosition dest) {
+        mContent.checkLineAndColumn(line, column, true);
+        mContent.lock(false);
+        try {
+            dest.index = mContent.getLineTree().getLineStart(line) + column;
+            dest.line = line;
+            dest.column = column;
+        } finally {
+            mContent.unlock(false);
+        }
+    }
+
+}
@@ -26,12 +26,32 @@ package io.github.rosemoe.sora.text;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Helper class for Content to take down modification
  * As well as provide Undo/Redo actions
+ * <p>
+ * The history is bounded by both a count of actions and an estimate of the memory it takes.
+ * Actions are kept in a ring, so the oldest ones are dropped in O(1). Large replacements only
+ * keep the part of the text which really changed, and the text of large actions which are no
+ * longer among the latest ones is compressed, and written to the spill directory if one is set.
+ * Compressing and writing happen on a background thread, the compressed text replaces the
+ * original one when the next action is pushed.
  *
  * @author Rosemoe
  */
@@ -44,9 +64,13 @@ public final class UndoManager implements ContentListener, Parcelable {
             o.mMaxStackSize = parcel.readInt();
             o.mStackPointer = parcel.readInt();
             o.mUndoEnabled = parcel.readInt() > 0;
+            o.mMaxBytes = parcel.readLong();
             var count = parcel.readInt();
             while (count > 0) {
-                o.mActionStack.add(parcel.readParcelable(UndoManager.class.getClassLoader()));
+                ContentAction action = parcel.readParcelable(UndoManager.class.getClassLoader());
+                var size = measure(action);
+                o.mActionStack.addLast(action, size);
+                o.mBytes += size;
                 count--;
             }
             return o;
@@ -61,9 +85,46 @@ public final class UndoManager implements ContentListener, Parcelable {
      * The max time span limit for merging actions
      */
     private static long sMergeTimeLimit = 8000L;
-    private final List<ContentAction> mActionStack;
+    /**
+     * Default limit of the memory taken by the history, in bytes
+     */
+    public final static long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+    /**
+     * Estimated memory taken by an action besides its text
+     */
+    private final static int ACTION_OVERHEAD = 64;
+    /**
+     * Replacements with at least so many characters only keep what really changed
+     */
+    private final static int DELTA_THRESHOLD = 256;
+    /**
+     * Texts with at least so many characters are packed once their action gets old
+     */
+    private final static int PACK_THRESHOLD = 4096;
+    /**
+     * How many of the latest actions are never packed, so typing and merging stays fast
+     */
+    private final static int UNPACKED_ACTIONS = 8;
+    /**
+     * Spill files are rewritten without the texts of dropped actions once they hold so many
+     * bytes of them, and more than of the texts still in use
+     */
+    private final static long COMPACT_THRESHOLD = 1024 * 1024;
+    private final static ExecutorService sPacker = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "Undo packer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private static File sSpillDirectory;
+    private final ActionRing mActionStack;
+    private final Queue<PackResult> mPacked = new ConcurrentLinkedQueue<>();
     private boolean mUndoEnabled;
     private int mMaxStackSize;
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private long mBytes;
+    private boolean mPackEnabled = true;
+    private SpillFile mSpillFile;
     private InsertAction mInsertAction;
     private DeleteAction mDeleteAction;
     private boolean mReplaceMark;
@@ -73,7 +134,7 @@ public final class UndoManager implements ContentListener, Parcelable {
      * Create an UndoManager
      */
     UndoManager() {
-        mActionStack = new ArrayList<>();
+        mActionStack = new ActionRing();
         mReplaceMark = false;
         mInsertAction = null;
         mDeleteAction = null;
@@ -97,6 +158,23 @@ public final class UndoManager implements ContentListener, Parcelable {
         UndoManager.sMergeTimeLimit = mergeTimeLimit;
     }
 
+    /**
+     * @see #setSpillDirectory(File)
+     */
+    public static File getSpillDirectory() {
+        return sSpillDirectory;
+    }
+
+    /**
+     * Set a directory where packed texts of old actions are written, instead of being kept
+     * compressed in memory. Affects the texts packed afterwards.
+     *
+     * @param directory The directory, or null to keep everything in memory
+     */
+    public static void setSpillDirectory(File directory) {
+        UndoManager.sSpillDirectory = directory;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -107,9 +185,10 @@ public final class UndoManager implements ContentListener, Parcelable {
         parcel.writeInt(mMaxStackSize);
         parcel.writeInt(mStackPointer);
         parcel.writeInt(mUndoEnabled ? 1 : 0);
+        parcel.writeLong(mMaxBytes);
         parcel.writeInt(mActionStack.size());
-        for (ContentAction contentAction : mActionStack) {
-            parcel.writeParcelable(contentAction, flags);
+        for (int i = 0; i < mActionStack.size(); i++) {
+            parcel.writeParcelable(mActionStack.get(i), flags);
         }
     }
 
@@ -206,6 +285,95 @@ public final class UndoManager implements ContentListener, Parcelable {
         cleanStack();
     }
 
+    /**
+     * Get the limit of the memory taken by the history
+     *
+     * @return max bytes
+     */
+    public long getMaxUndoBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Set a limit of the memory taken by the history. The oldest actions are dropped when it
+     * is exceeded, though the latest action is always kept.
+     *
+     * @param maxBytes max bytes
+     */
+    public void setMaxUndoBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("max bytes can not be zero or smaller");
+        }
+        mMaxBytes = maxBytes;
+        cleanStack();
+    }
+
+    /**
+     * Get the estimated memory taken by the history, in bytes
+     */
+    public long getUndoBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @see #setPackEnabled(boolean)
+     */
+    public boolean isPackEnabled() {
+        return mPackEnabled;
+    }
+
+    /**
+     * Set whether the large texts of old actions are compressed, and written to the
+     * {@link #setSpillDirectory(File) spill directory} if there is one
+     *
+     * @param enabled Enable or disable
+     */
+    public void setPackEnabled(boolean enabled) {
+        mPackEnabled = enabled;
+    }
+
+    /**
+     * Move the texts written to the spill file back into memory, still compressed, and delete
+     * the file. Texts packed afterwards go to a new spill file.
+     *
+     * @see #closeSpillFile(boolean)
+     */
+    public void closeSpillFile() {
+        closeSpillFile(true);
+    }
+
+    /**
+     * Delete the spill file. Texts packed afterwards go to a new spill file.
+     *
+     * @param keepTexts Whether the texts written to the file are moved back into memory, still
+     *                  compressed. Otherwise the whole history is dropped instead of reading the
+     *                  file back, which suits a Content that is no longer used.
+     */
+    public void closeSpillFile(boolean keepTexts) {
+        applyPacked();
+        if (!keepTexts) {
+            mActionStack.clear();
+            mStackPointer = 0;
+            mBytes = 0;
+        }
+        if (mSpillFile == null) {
+            return;
+        }
+        mSpillFile.close(keepTexts);
+        mSpillFile = null;
+        if (!keepTexts) {
+            return;
+        }
+        // the texts take memory now
+        mBytes = 0;
+        for (int i = 0; i < mActionStack.size(); i++) {
+            var size = measure(mActionStack.get(i));
+            mActionStack.setSize(i, size);
+            mBytes += size;
+        }
+        cleanStack();
+    }
+
     /**
      * Clean stack after add or state change
      * This is to limit stack size
@@ -213,10 +381,18 @@ public final class UndoManager implements ContentListener, Parcelable {
     private void cleanStack() {
         if (!mUndoEnabled) {
             mActionStack.clear();
+            mPacked.clear();
             mStackPointer = 0;
+            mBytes = 0;
+            if (mSpillFile != null) {
+                mSpillFile.close(false);
+                mSpillFile = null;
+            }
         } else {
-            while (mStackPointer > 1 && mActionStack.size() > mMaxStackSize) {
-                mActionStack.remove(0);
+            while (mStackPointer > 1 && (mActionStack.size() > mMaxStackSize || mBytes > mMaxBytes)) {
+                var action = mActionStack.get(0);
+                mBytes -= mActionStack.removeFirst();
+                release(action);
                 mStackPointer--;
             }
         }
@@ -228,10 +404,252 @@ public final class UndoManager implements ContentListener, Parcelable {
      */
     private void cleanBeforePush() {
         while (mStackPointer < mActionStack.size()) {
-            mActionStack.remove(mActionStack.size() - 1);
+            var action = mActionStack.get(mActionStack.size() - 1);
+            mBytes -= mActionStack.removeLast();
+            release(action);
+        }
+    }
+
+    /**
+     * Add a new action on top of the stack
+     */
+    private void addAction(ContentAction action) {
+        var size = measure(action);
+        mActionStack.addLast(action, size);
+        mBytes += size;
+        mStackPointer++;
+    }
+
+    /**
+     * Account for an action merged into the action on top of the stack
+     */
+    private void growLastAction(ContentAction merged) {
+        var size = measure(merged);
+        mActionStack.addSize(mActionStack.size() - 1, size);
+        mBytes += size;
+    }
+
+    /**
+     * Measure the action on top of the stack again after another action was merged into it
+     */
+    private void measureLastAction() {
+        var index = mActionStack.size() - 1;
+        var size = measure(mActionStack.get(index));
+        mBytes += size - mActionStack.setSize(index, size);
+    }
+
+    /**
+     * Pack the texts of the action which just stopped being one of the latest ones
+     */
+    private void packOldAction() {
+        var index = mActionStack.size() - 1 - UNPACKED_ACTIONS;
+        if (!mPackEnabled || index < 0) {
+            return;
+        }
+        if (mSpillFile == null && sSpillDirectory != null) {
+            mSpillFile = new SpillFile(sSpillDirectory);
+        }
+        var action = mActionStack.get(index);
+        pack(action, action, mSpillFile);
+    }
+
+    private void pack(ContentAction owner, ContentAction action, SpillFile spillFile) {
+        if (action instanceof InsertAction) {
+            var insert = (InsertAction) action;
+            insert.text = pack(owner, insert, insert.text, spillFile);
+        } else if (action instanceof DeleteAction) {
+            var delete = (DeleteAction) action;
+            delete.text = pack(owner, delete, delete.text, spillFile);
+        } else if (action instanceof ReplaceAction) {
+            var replace = (ReplaceAction) action;
+            pack(owner, replace._insert, spillFile);
+            pack(owner, replace._delete, spillFile);
+        } else if (action instanceof MultiAction) {
+            for (var child : ((MultiAction) action)._actions) {
+                pack(owner, child, spillFile);
+            }
+        }
+    }
+
+    /**
+     * Compress the text in the background
+     *
+     * @return The text to keep until the packed one replaces it
+     */
+    private CharSequence pack(ContentAction owner, ContentAction action, CharSequence text, SpillFile spillFile) {
+        if (text instanceof PackedText || text.length() < PACK_THRESHOLD) {
+            return text;
+        }
+        // a copy that never changes, merging into the action makes it a new object again
+        var source = text.toString();
+        sPacker.execute(() -> {
+            var data = PackedText.compress(source);
+            if (data.length >= source.length() * 2) {
+                return;
+            }
+            PackedText packed = null;
+            if (spillFile != null) {
+                try {
+                    packed = spillFile.append(source.length(), data);
+                } catch (IOException e) {
+                    // keep it in memory then
+                    e.printStackTrace();
+                }
+            }
+            if (packed == null) {
+                packed = new PackedText(source.length(), data);
+            }
+            mPacked.add(new PackResult(owner, action, source, packed));
+        });
+        return source;
+    }
+
+    /**
+     * Replace the texts packed in the background, unless their actions changed or were
+     * dropped meanwhile
+     */
+    private void applyPacked() {
+        PackResult result;
+        while ((result = mPacked.poll()) != null) {
+            var index = mActionStack.lastIndexOf(result.owner);
+            if (index >= 0 && result.apply()) {
+                var size = measure(result.owner);
+                mBytes += size - mActionStack.setSize(index, size);
+            } else {
+                release(result.packed);
+            }
+        }
+    }
+
+    /**
+     * Free the parts of the spill file taken by the texts of a dropped action
+     */
+    private static void release(ContentAction action) {
+        if (action instanceof InsertAction) {
+            release(((InsertAction) action).text);
+        } else if (action instanceof DeleteAction) {
+            release(((DeleteAction) action).text);
+        } else if (action instanceof ReplaceAction) {
+            var replace = (ReplaceAction) action;
+            release(replace._insert);
+            release(replace._delete);
+        } else if (action instanceof MultiAction) {
+            for (var child : ((MultiAction) action)._actions) {
+                release(child);
+            }
+        }
+    }
+
+    private static void release(CharSequence text) {
+        if (text instanceof PackedText) {
+            var file = ((PackedText) text).mFile;
+            if (file != null) {
+                file.free((PackedText) text);
+            }
+        }
+    }
+
+    /**
+     * Estimate the memory taken by the given action
+     */
+    private static long measure(ContentAction action) {
+        if (action instanceof InsertAction) {
+            return ACTION_OVERHEAD + measure(((InsertAction) action).text);
+        } else if (action instanceof DeleteAction) {
+            return ACTION_OVERHEAD + measure(((DeleteAction) action).text);
+        } else if (action instanceof ReplaceAction) {
+            var replace = (ReplaceAction) action;
+            return ACTION_OVERHEAD + measure(replace._insert) + measure(replace._delete);
+        } else if (action instanceof MultiAction) {
+            long size = ACTION_OVERHEAD;
+            for (var child : ((MultiAction) action)._actions) {
+                size += measure(child);
+            }
+            return size;
+        }
+        return ACTION_OVERHEAD;
+    }
+
+    private static long measure(CharSequence text) {
+        if (text instanceof PackedText) {
+            return ((PackedText) text).getMemorySize();
+        }
+        return text.length() * 2L;
+    }
+
+    /**
+     * Only keep what changed in a large replacement: the part at the start and the part at
+     * the end which are the same in the deleted and inserted texts are cut out.
+     */
+    private static void deltaEncode(ReplaceAction action) {
+        var deleted = action._delete.text;
+        var inserted = action._insert.text;
+        if (deleted.length() + inserted.length() < DELTA_THRESHOLD) {
+            return;
+        }
+        var max = Math.min(deleted.length(), inserted.length());
+        var prefix = 0;
+        while (prefix < max && deleted.charAt(prefix) == inserted.charAt(prefix)) {
+            prefix++;
+        }
+        var suffix = 0;
+        while (suffix < max - prefix
+                && deleted.charAt(deleted.length() - 1 - suffix) == inserted.charAt(inserted.length() - 1 - suffix)) {
+            suffix++;
+        }
+        // deleted text never holds '\r', don't cut a "\r\n" separator of the inserted text in two
+        if (suffix > 0 && inserted.length() - suffix > prefix
+                && inserted.charAt(inserted.length() - suffix - 1) == '\r') {
+            suffix--;
+        }
+        if (prefix == 0 && suffix == 0) {
+            return;
+        }
+        var start = new CharPosition();
+        start.line = action._delete.startLine;
+        start.column = action._delete.startColumn;
+        advance(start, deleted, 0, prefix);
+        var deleteEnd = start.fromThis();
+        advance(deleteEnd, deleted, prefix, deleted.length() - suffix);
+        var insertEnd = start.fromThis();
+        advance(insertEnd, inserted, prefix, inserted.length() - suffix);
+
+        var delete = action._delete;
+        delete.startLine = start.line;
+        delete.startColumn = start.column;
+        delete.endLine = deleteEnd.line;
+        delete.endColumn = deleteEnd.column;
+        delete.text = deleted.subSequence(prefix, deleted.length() - suffix).toString();
+        var insert = action._insert;
+        insert.startLine = start.line;
+        insert.startColumn = start.column;
+        insert.endLine = insertEnd.line;
+        insert.endColumn = insertEnd.column;
+        insert.text = inserted.subSequence(prefix, inserted.length() - suffix).toString();
+    }
+
+    /**
+     * Move the position over the given part of a text
+     */
+    private static void advance(CharPosition pos, CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            var ch = text.charAt(i);
+            if (ch == '\r' && i + 1 < end && text.charAt(i + 1) == '\n') {
+                continue;
+            }
+            if (ch == '\n' || ch == '\r') {
+                pos.line++;
+                pos.column = 0;
+            } else {
+                pos.column++;
+            }
         }
     }
 
+    private static CharSequence unpack(CharSequence text) {
+        return text instanceof PackedText ? text.toString() : text;
+    }
+
     /**
      * Push a new {@link ContentAction} to stack
      * It will merge actions if possible
@@ -242,39 +660,42 @@ public final class UndoManager implements ContentListener, Parcelable {
         if (!isUndoEnabled()) {
             return;
         }
+        applyPacked();
         cleanBeforePush();
+        if (action instanceof ReplaceAction) {
+            deltaEncode((ReplaceAction) action);
+        }
         if (content.isInBatchEdit()) {
             if (mActionStack.isEmpty()) {
                 MultiAction a = new MultiAction();
                 a.addAction(action);
-                mActionStack.add(a);
-                mStackPointer++;
+                addAction(a);
             } else {
                 ContentAction a = mActionStack.get(mActionStack.size() - 1);
                 if (a instanceof MultiAction) {
                     MultiAction ac = (MultiAction) a;
                     ac.addAction(action);
+                    growLastAction(action);
                 } else {
                     MultiAction ac = new MultiAction();
                     ac.addAction(action);
-                    mActionStack.add(ac);
-                    mStackPointer++;
+                    addAction(ac);
                 }
             }
         } else {
             if (mActionStack.isEmpty()) {
-                mActionStack.add(action);
-                mStackPointer++;
+                addAction(action);
             } else {
                 ContentAction last = mActionStack.get(mActionStack.size() - 1);
                 if (last.canMerge(action)) {
                     last.merge(action);
+                    measureLastAction();
                 } else {
-                    mActionStack.add(action);
-                    mStackPointer++;
+                    addAction(action);
                 }
             }
         }
+        packOldAction();
         cleanStack();
     }
 
@@ -399,14 +820,16 @@ public final class UndoManager implements ContentListener, Parcelable {
 
         @Override
         public void redo(Content content) {
-            content.insert(startLine, startColumn, text);
+            content.insert(startLine, startColumn, unpack(text));
         }
 
         @Override
         public boolean canMerge(ContentAction action) {
             if (action instanceof InsertAction) {
                 InsertAction ac = (InsertAction) action;
+                // packed texts would be inflated for every character appended to them
                 return (ac.startColumn == endColumn && ac.startLine == endLine
+                        && !(text instanceof PackedText)
                         && ac.text.length() + text.length() < 10000
                         && Math.abs(ac.createTime - createTime) < sMergeTimeLimit);
             }
@@ -553,7 +976,7 @@ public final class UndoManager implements ContentListener, Parcelable {
 
         @Override
         public void undo(Content content) {
-            content.insert(startLine, startColumn, text);
+            content.insert(startLine, startColumn, unpack(text));
         }
 
         @Override
@@ -566,6 +989,7 @@ public final class UndoManager implements ContentListener, Parcelable {
             if (action instanceof DeleteAction) {
                 DeleteAction ac = (DeleteAction) action;
                 return (ac.endColumn == startColumn && ac.endLine == startLine
+                        && !(text instanceof PackedText)
                         && ac.text.length() + text.length() < 10000
                         && Math.abs(ac.createTime - createTime) < sMergeTimeLimit);
             }
@@ -662,4 +1086,403 @@ public final class UndoManager implements ContentListener, Parcelable {
             parcel.writeParcelable(_delete, flags);
         }
     }
+
+    /**
+     * Actions in a growable ring, dropping actions at either end takes O(1).
+     * The estimated size of every action is kept beside it.
+     *
+     * @author Rose
+     */
+    private final static class ActionRing {
+
+        private ContentAction[] mActions = new ContentAction[16];
+        private long[] mSizes = new long[16];
+        private int mHead;
+        private int mSize;
+
+        int size() {
+            return mSize;
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        ContentAction get(int index) {
+            return mActions[slot(index)];
+        }
+
+        /**
+         * Find an action by identity, searching from the latest one
+         */
+        int lastIndexOf(ContentAction action) {
+            for (int i = mSize - 1; i >= 0; i--) {
+                if (mActions[slot(i)] == action) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void addSize(int index, long delta) {
+            mSizes[slot(index)] += delta;
+        }
+
+        /**
+         * @return The previous size
+         */
+        long setSize(int index, long size) {
+            var slot = slot(index);
+            var old = mSizes[slot];
+            mSizes[slot] = size;
+            return old;
+        }
+
+        void addLast(ContentAction action, long size) {
+            if (mSize == mActions.length) {
+                var actions = new ContentAction[mSize * 2];
+                var sizes = new long[mSize * 2];
+                for (int i = 0; i < mSize; i++) {
+                    actions[i] = mActions[slot(i)];
+                    sizes[i] = mSizes[slot(i)];
+                }
+                mActions = actions;
+                mSizes = sizes;
+                mHead = 0;
+            }
+            var slot = slot(mSize);
+            mActions[slot] = action;
+            mSizes[slot] = size;
+            mSize++;
+        }
+
+        /**
+         * @return Size of the removed action
+         */
+        long removeFirst() {
+            var size = mSizes[mHead];
+            mActions[mHead] = null;
+            mHead = (mHead + 1) % mActions.length;
+            mSize--;
+            return size;
+        }
+
+        /**
+         * @return Size of the removed action
+         */
+        long removeLast() {
+            var slot = slot(mSize - 1);
+            mActions[slot] = null;
+            mSize--;
+            return mSizes[slot];
+        }
+
+        void clear() {
+            while (mSize > 0) {
+                removeLast();
+            }
+            mHead = 0;
+        }
+
+        private int slot(int index) {
+            return (mHead + index) % mActions.length;
+        }
+    }
+
+    /**
+     * A text packed in the background, waiting to replace the text of its action
+     *
+     * @author Rose
+     */
+    private final static class PackResult {
+
+        final ContentAction owner;
+        final ContentAction action;
+        final String source;
+        final PackedText packed;
+
+        PackResult(ContentAction owner, ContentAction action, String source, PackedText packed) {
+            this.owner = owner;
+            this.action = action;
+            this.source = source;
+            this.packed = packed;
+        }
+
+        /**
+         * @return Whether the action still had the text which was packed
+         */
+        boolean apply() {
+            if (action instanceof InsertAction) {
+                var insert = (InsertAction) action;
+                if (insert.text == source) {
+                    insert.text = packed;
+                    return true;
+                }
+            } else if (action instanceof DeleteAction) {
+                var delete = (DeleteAction) action;
+                if (delete.text == source) {
+                    delete.text = packed;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Text of an old action, compressed in memory or in a {@link SpillFile}.
+     * It is inflated as a whole whenever it is read, so the actions unpack it once before
+     * using it.
+     *
+     * @author Rose
+     */
+    private final static class PackedText implements CharSequence {
+
+        private final int mLength;
+        private final int mDataSize;
+        private volatile byte[] mData;
+        /**
+         * The file holding the data, null once it is in memory
+         */
+        private volatile SpillFile mFile;
+        /**
+         * Guarded by the file
+         */
+        private long mOffset;
+
+        PackedText(int length, byte[] data) {
+            mLength = length;
+            mData = data;
+            mDataSize = data.length;
+        }
+
+        PackedText(int length, SpillFile file, long offset, int dataSize) {
+            mLength = length;
+            mFile = file;
+            mOffset = offset;
+            mDataSize = dataSize;
+        }
+
+        /**
+         * Compress the UTF-16 code units of the text, so any text is restored as it was
+         */
+        static byte[] compress(CharSequence text) {
+            var raw = new byte[text.length() * 2];
+            for (int i = 0; i < text.length(); i++) {
+                var ch = text.charAt(i);
+                raw[i * 2] = (byte) ch;
+                raw[i * 2 + 1] = (byte) (ch >> 8);
+            }
+            var deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                var output = new ByteArrayOutputStream(raw.length / 4 + 64);
+                var buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    output.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return output.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        long getMemorySize() {
+            return mFile != null ? 0 : mDataSize;
+        }
+
+        @Override
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return toString().charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            byte[] data;
+            try {
+                var file = mFile;
+                data = file != null ? file.read(this) : mData;
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read undo history", e);
+            }
+            var raw = new byte[mLength * 2];
+            var inflater = new Inflater();
+            try {
+                inflater.setInput(data);
+                var offset = 0;
+                while (offset < raw.length && !inflater.finished()) {
+                    var count = inflater.inflate(raw, offset, raw.length - offset);
+                    if (count == 0 && inflater.needsInput()) {
+                        throw new DataFormatException("Truncated data");
+                    }
+                    offset += count;
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupt undo history", e);
+            } finally {
+                inflater.end();
+            }
+            var chars = new char[mLength];
+            for (int i = 0; i < mLength; i++) {
+                chars[i] = (char) ((raw[i * 2] & 0xff) | (raw[i * 2 + 1] & 0xff) << 8);
+            }
+            return new String(chars);
+        }
+    }
+
+    /**
+     * File holding the packed texts of an UndoManager. Texts are appended to it, and it is
+     * rewritten without the texts of dropped actions once they take most of it. It is only
+     * created when the first text is written, and deleted once it is closed.
+     *
+     * @author Rose
+     */
+    private final static class SpillFile {
+
+        private final File mDirectory;
+        private final Set<PackedText> mTexts = new HashSet<>();
+        private File mPath;
+        private RandomAccessFile mFile;
+        private long mLiveBytes;
+        private long mFreeBytes;
+        private boolean mCompacting;
+        private boolean mClosed;
+
+        SpillFile(File directory) {
+            mDirectory = directory;
+        }
+
+        synchronized PackedText append(int length, byte[] data) throws IOException {
+            if (mClosed) {
+                throw new IOException("Spill file is closed");
+            }
+            if (mFile == null) {
+                mDirectory.mkdirs();
+                mPath = File.createTempFile("undo", ".spill", mDirectory);
+                mFile = new RandomAccessFile(mPath, "rw");
+            }
+            var offset = mFile.length();
+            mFile.seek(offset);
+            mFile.write(data);
+            var text = new PackedText(length, this, offset, data.length);
+            mTexts.add(text);
+            mLiveBytes += data.length;
+            return text;
+        }
+
+        synchronized byte[] read(PackedText text) throws IOException {
+            if (text.mFile != this) {
+                // moved into memory meanwhile
+                return text.mData;
+            }
+            var data = new byte[text.mDataSize];
+            mFile.seek(text.mOffset);
+            mFile.readFully(data);
+            return data;
+        }
+
+        /**
+         * Mark the text as no longer used
+         */
+        synchronized void free(PackedText text) {
+            if (!mTexts.remove(text)) {
+                return;
+            }
+            mLiveBytes -= text.mDataSize;
+            mFreeBytes += text.mDataSize;
+            if (mTexts.isEmpty()) {
+                try {
+                    mFile.setLength(0);
+                    mFreeBytes = 0;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } else if (!mCompacting && mFreeBytes >= COMPACT_THRESHOLD && mFreeBytes > mLiveBytes) {
+                mCompacting = true;
+                sPacker.execute(this::compact);
+            }
+        }
+
+        /**
+         * Rewrite the file with only the texts still in use
+         */
+        private synchronized void compact() {
+            mCompacting = false;
+            if (mClosed || mFreeBytes < COMPACT_THRESHOLD) {
+                return;
+            }
+            var texts = new ArrayList<>(mTexts);
+            var offsets = new long[texts.size()];
+            File path = null;
+            RandomAccessFile file = null;
+            try {
+                path = File.createTempFile("undo", ".spill", mDirectory);
+                file = new RandomAccessFile(path, "rw");
+                for (int i = 0; i < texts.size(); i++) {
+                    offsets[i] = file.getFilePointer();
+                    file.write(read(texts.get(i)));
+                }
+            } catch (IOException e) {
+                // the old file is kept
+                e.printStackTrace();
+                closeQuietly(file, path);
+                return;
+            }
+            for (int i = 0; i < texts.size(); i++) {
+                texts.get(i).mOffset = offsets[i];
+            }
+            closeQuietly(mFile, mPath);
+            mFile = file;
+            mPath = path;
+            mFreeBytes = 0;
+        }
+
+        /**
+         * Close and delete the file
+         *
+         * @param keepTexts Whether the texts still in use are moved into memory first
+         */
+        synchronized void close(boolean keepTexts) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (keepTexts) {
+                for (var text : mTexts) {
+                    try {
+                        text.mData = read(text);
+                        text.mFile = null;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            mTexts.clear();
+            closeQuietly(mFile, mPath);
+        }
+
+        private static void closeQuietly(RandomAccessFile file, File path) {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (path != null) {
+                path.delete();
+            }
+        }
+    }
 }
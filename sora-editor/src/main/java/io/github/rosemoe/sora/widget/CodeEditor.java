@@ -3685,6 +3685,9 @@ public class CodeEditor extends View implements ContentListener, Formatter.Forma
      */
     public void release() {
         hideEditorWindows();
+        if (mText != null) {
+            mText.getUndoManager().closeSpillFile();
+        }
         if (mLanguage != null) {
             mLanguage.getAnalyzeManager().destroy();
             mLanguage.getFormatter().setReceiver(null);